@@ -1,74 +1,65 @@
 package de.intranda.goobi.plugins;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.TreeMap;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
-import javax.imageio.ImageIO;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.configuration.XMLConfiguration;
 import org.goobi.beans.Process;
-import org.goobi.beans.Step;
 import org.goobi.beans.User;
 import org.goobi.goobiScript.GoobiScriptManager;
 import org.goobi.goobiScript.GoobiScriptResult;
 import org.goobi.managedbeans.LoginBean;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginType;
-import org.goobi.production.flow.statistics.hibernate.FilterHelper;
-import org.goobi.production.plugin.PluginLoader;
 import org.goobi.production.plugin.interfaces.IPlugin;
-import org.goobi.production.plugin.interfaces.IValidatorPlugin;
 import org.goobi.production.plugin.interfaces.IWorkflowPlugin;
+import org.primefaces.PrimeFaces;
 import org.primefaces.event.FileUploadEvent;
 import org.primefaces.model.file.UploadedFile;
 
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.DecodeHintType;
-import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.Result;
-import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
-import com.google.zxing.common.HybridBinarizer;
-
+import de.intranda.goobi.plugins.massuploadutils.BarcodeDecodingQueue;
+import de.intranda.goobi.plugins.massuploadutils.BarcodeReader;
+import de.intranda.goobi.plugins.massuploadutils.BarcodeResultCache;
+import de.intranda.goobi.plugins.massuploadutils.DuplicateDetector;
+import de.intranda.goobi.plugins.massuploadutils.FileChecksum;
+import de.intranda.goobi.plugins.massuploadutils.FileMessage;
+import de.intranda.goobi.plugins.massuploadutils.FileTransferEngine;
 import de.intranda.goobi.plugins.massuploadutils.GoobiScriptCopyImages;
+import de.intranda.goobi.plugins.massuploadutils.HotFolderIngestService;
+import de.intranda.goobi.plugins.massuploadutils.IdentifierExtractor;
+import de.intranda.goobi.plugins.massuploadutils.InsertJournal;
+import de.intranda.goobi.plugins.massuploadutils.InsertProgress;
+import de.intranda.goobi.plugins.massuploadutils.MassUploadScheduler;
 import de.intranda.goobi.plugins.massuploadutils.MassUploadedFile;
+import de.intranda.goobi.plugins.massuploadutils.MassUploadedFileDataModel;
 import de.intranda.goobi.plugins.massuploadutils.MassUploadedFileStatus;
 import de.intranda.goobi.plugins.massuploadutils.MassUploadedProcess;
+import de.intranda.goobi.plugins.massuploadutils.ProcessMatcher;
+import de.intranda.goobi.plugins.massuploadutils.StatusSummary;
+import de.intranda.goobi.plugins.massuploadutils.StepCloser;
+import de.intranda.goobi.plugins.massuploadutils.TransferMode;
+import de.intranda.goobi.plugins.massuploadutils.UploadBatch;
+import de.intranda.goobi.plugins.massuploadutils.UploadMetrics;
 import de.sub.goobi.config.ConfigPlugins;
 import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.Helper;
-import de.sub.goobi.helper.HelperSchritte;
-import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.helper.enums.StepStatus;
-import de.sub.goobi.helper.exceptions.DAOException;
-import de.sub.goobi.helper.exceptions.SwapException;
-import de.sub.goobi.persistence.managers.ProcessManager;
-import de.sub.goobi.persistence.managers.StepManager;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
@@ -87,17 +78,48 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
     private String processTitleMatchType;
     private String filenameSeparator;
     private List<String> stepTitles;
-    private transient List<MassUploadedFile> uploadedFiles = new ArrayList<>();
+    // replaced as a whole by the barcode analysis, uploads add to it while holding the lock of the plugin
+    private transient volatile List<MassUploadedFile> uploadedFiles = new ArrayList<>();
+    // folders and processes shared by the files of the batch
+    private transient UploadBatch batch = new UploadBatch();
+    private transient StatusSummary statusSummary = new StatusSummary();
+    private transient MassUploadedFileDataModel fileDataModel = new MassUploadedFileDataModel(() -> uploadedFiles, () -> statusSummary);
     private User user;
     private File tempFolder;
     private HashSet<Integer> stepIDs = new HashSet<>();
-    private transient List<MassUploadedProcess> finishedInserts = new ArrayList<>();
+    private transient volatile List<MassUploadedProcess> finishedInserts = new ArrayList<>();
     private boolean copyImagesViaGoobiScript = false;
-    private transient ExecutorService barcodePool;
+    private boolean goobiScriptJobPerProcess = false;
+    private transient BarcodeReader barcodeReader;
+    private transient ProcessMatcher processMatcher;
+    private transient FileTransferEngine transferEngine;
+    private transient StepCloser stepCloser;
+    private TransferMode transferMode;
+    private String checksumAlgorithm;
+    private String verifyAlgorithm;
+    private transient DuplicateDetector duplicateDetector;
+    private transient MassUploadScheduler scheduler;
+    private String schedulerKey;
+    private transient BarcodeDecodingQueue barcodeQueue;
+    private int barcodeCacheSize;
     private volatile boolean analyzingBarcodes = false;
-    private boolean currentlyInserting;
-    private boolean hideInsertButtonAfterClick = false;
+    private final AtomicBoolean currentlyInserting = new AtomicBoolean();
+    private transient InsertProgress insertProgress;
+    // timings of the current batch, from the upload to the closed steps
+    private transient volatile UploadMetrics batchMetrics = new UploadMetrics();
+    private boolean incrementalRescan;
+    // state of the page parts at the last poll, to update only what changed
+    private transient String renderedTableState;
+    private transient String renderedActionState;
+    private transient String renderedProgressState;
+    // folder of the last scan, its files are kept for incremental scans
+    private File scannedFolder;
+    private String journalFolder;
+    private transient volatile InsertJournal insertJournal;
+    private transient List<InsertJournal.State> interruptedBatches;
+    private volatile boolean hideInsertButtonAfterClick = false;
     private String detectionType;
+    private int barcodeThreads;
 
     //        private boolean useBarcodesDefault = false;
     private String[] insertModes = { "plugin_massupload_insertmode_imageName", "plugin_massupload_insertmode_barcode" };
@@ -118,14 +140,40 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
         filenameSeparator = config.getString("filename-separator", "_").toLowerCase();
         stepTitles = Arrays.asList(config.getStringArray("allowed-step"));
         copyImagesViaGoobiScript = config.getBoolean("copy-images-using-goobiscript", false);
+        incrementalRescan = config.getBoolean("incremental-rescan", false);
+        goobiScriptJobPerProcess = config.getBoolean("goobiscript-job-per-process", false);
         detectionType = config.getString("detection-type", "filename").toLowerCase();
+        // the work of all users shares one scheduler, the queues of a user are named by the login
+        scheduler = MassUploadScheduler.getInstance(config.getInt("scheduler-threads", Runtime.getRuntime().availableProcessors()),
+                config.getInt("scheduler-jobs", 8), "virtual".equalsIgnoreCase(config.getString("thread-mode", "platform")),
+                config.getInt("database-connections", 8));
+        readUser();
+        schedulerKey = user == null ? "massupload-" + System.identityHashCode(this) : user.getLogin();
 
         //        boolean useBarcodes = config.getBoolean("use-barcodes", false);
         if ("barcode".equals(detectionType)) {
             insertMode = "plugin_massupload_insertmode_barcode";
         }
-        barcodePool = Executors.newFixedThreadPool(2);
+        barcodeThreads = config.getInt("barcode-threads", Runtime.getRuntime().availableProcessors());
+        if (barcodeThreads < 1) {
+            barcodeThreads = Runtime.getRuntime().availableProcessors();
+        }
+        barcodeReader = BarcodeReader.fromConfiguration(config);
+        barcodeQueue = new BarcodeDecodingQueue(scheduler, schedulerKey + "/barcode", barcodeThreads, config.getInt("barcode-queue-size", 500),
+                this::readBarcode);
+        barcodeCacheSize = config.getInt("barcode-cache-size", 100000);
         processTitleMatchType = config.getString("match-type", "contains");
+        processMatcher = ProcessMatcher.fromConfiguration(config, scheduler);
+        transferMode = "move".equalsIgnoreCase(config.getString("transfer-mode", "copy")) ? TransferMode.MOVE : TransferMode.COPY;
+        checksumAlgorithm = config.getString("checksum-algorithm", "SHA-256");
+        verifyAlgorithm = config.getBoolean("verify-checksum", false) ? checksumAlgorithm : null;
+        duplicateDetector = DuplicateDetector.fromConfiguration(config);
+        transferEngine = new FileTransferEngine(scheduler, schedulerKey + "/copy", config.getInt("copy-threads", 4),
+                config.getInt("copy-threads-per-volume", 0), transferMode, verifyAlgorithm, duplicateDetector);
+        stepCloser = new StepCloser(scheduler, schedulerKey + "/close", config.getInt("close-threads", 4));
+        journalFolder = config.getString("journal-folder", Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "massupload_journal").toString());
+        // plugins have no startup hook, the hot folders are watched from the first time the plugin is loaded, later sessions only apply changes
+        HotFolderIngestService.configure(config, scheduler);
 
     }
 
@@ -160,6 +208,7 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
      */
     public void uploadFile(FileUploadEvent event) {
         useUpload = true;
+        scannedFolder = null;
 
         try {
             if (tempFolder == null) {
@@ -178,26 +227,23 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
     }
 
     public void sortFiles() {
-        String currentBarcode = "";
-        Map<String, List<Process>> searchCache = new HashMap<>();
-        this.uploadedFiles.sort(Comparator.comparing(MassUploadedFile::getFilename));
         if ("plugin_massupload_insertmode_barcode".equals(insertMode)) {
-            for (MassUploadedFile muf : this.uploadedFiles) {
-                try {
-                    if (!muf.isCheckedForBarcode()) {
-                        String barcodeInfo = readBarcode(muf.getFile(), BarcodeFormat.CODE_128);
-                        muf.setBarcodeValue(Optional.ofNullable(barcodeInfo));
-                    }
-                    if (muf.getBarcodeValue().isPresent()) {
-                        currentBarcode = muf.getBarcodeValue().get();
-                    }
-                } catch (IOException e) {
-                    log.error(e);
+            // the barcodes may still be read in the background, so the assignment waits for them in its own thread
+            assignProcessesWithBarcodeInfo();
+            PrimeFaces.current().executeScript("startPolling()");
+        } else {
+            // the uploaded files are matched all together after the upload is finished
+            List<MassUploadedFile> unassignedFiles = new ArrayList<>();
+            for (MassUploadedFile muf : uploadedFiles) {
+                if (muf.getStatus() == MassUploadedFileStatus.UNKNWON) {
+                    unassignedFiles.add(muf);
                 }
-                assignProcess(muf, searchCache, currentBarcode);
+            }
+            assignProcessesByFilename(unassignedFiles);
+            synchronized (this) {
+                Collections.sort(uploadedFiles);
             }
         }
-        Collections.sort(uploadedFiles);
     }
 
     /**
@@ -217,28 +263,22 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
         }
 
         File file = new File(tempFolder, fileName);
-        try (OutputStream out = new FileOutputStream(file)) {
-
-            int read = 0;
-            byte[] bytes = new byte[1024];
-            while ((read = in.read(bytes)) != -1) {
-                out.write(bytes, 0, read);
-            }
-            out.flush();
-            MassUploadedFile muf = new MassUploadedFile(file, fileName);
+        try {
+            // the checksum is calculated while writing, so the file does not need to be read again
+            long start = System.nanoTime();
+            String checksum = FileChecksum.write(in, file.toPath(), checksumAlgorithm);
+            batchMetrics.record(UploadMetrics.Phase.UPLOAD, start, file.length());
+            MassUploadedFile muf = batch.createFile(tempFolder, fileName);
+            muf.setChecksum(checksum);
             if ("plugin_massupload_insertmode_barcode".equals(insertMode)) {
-                Callable<String> readBarcodeTask = () -> readBarcode(muf.getFile(), BarcodeFormat.CODE_128);
-                Future<String> futureBarcode = this.barcodePool.submit(readBarcodeTask);
-                String barcodeInfo = null;
-                barcodeInfo = futureBarcode.get();
-                muf.setCheckedForBarcode(true);
-
-                muf.setBarcodeValue(Optional.ofNullable(barcodeInfo));
-            } else {
-                assignProcessByFilename(muf, null);
+                useBarcodeCache(tempFolder);
+                barcodeQueue.submit(muf);
             }
-            uploadedFiles.add(muf);
-        } catch (IOException | InterruptedException | ExecutionException e) {
+            synchronized (this) {
+                uploadedFiles.add(muf);
+                statusSummary.add(muf);
+            }
+        } catch (IOException e) {
             log.error(e);
         } finally {
             if (in != null) {
@@ -256,37 +296,83 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
      * do not upload the images from web UI, use images of subfolder in user home directory instead, usually called 'mass_upload'
      */
     public void readFilesFromUserHomeFolder() {
+        if (currentlyInserting.get()) {
+            Helper.setFehlerMeldung("plugin_massupload_insertionRunning");
+            return;
+        }
+        finishJournal();
         useUpload = false;
-        uploadedFiles = new ArrayList<>();
         finishedInserts = new ArrayList<>();
-        stepIDs = new HashSet<>();
         try {
             readUser();
             File folder = new File(user.getHomeDir(), userFolderName);
             if (folder.exists() && folder.canRead()) {
+                boolean barcodeMode = "plugin_massupload_insertmode_barcode".equals(insertMode);
+                if (barcodeMode) {
+                    useBarcodeCache(folder);
+                }
+                // in incremental mode the files of the last scan are kept, if they were not changed
+                Map<String, MassUploadedFile> previousFiles = new HashMap<>();
+                if (incrementalRescan && folder.equals(scannedFolder)) {
+                    for (MassUploadedFile muf : uploadedFiles) {
+                        previousFiles.put(muf.getFilename(), muf);
+                    }
+                } else {
+                    batch.clear();
+                    batchMetrics = new UploadMetrics();
+                }
+                List<MassUploadedFile> files = new ArrayList<>();
+                List<MassUploadedFile> changedFiles = new ArrayList<>();
                 // we use the Files API intentionally, as we expect folders with many files in them.
                 // The nio DirectoryStream initializes the Path objects lazily, so we don't have as many objects in memory and to create
-                try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.toPath())) {
-                    Map<String, List<Process>> searchCache = new HashMap<>();
-                    for (Path file : files) {
-                        if (!Files.isDirectory(file) && !".DS_Store".equals(file.getFileName().toString())) {
-                            MassUploadedFile muf = new MassUploadedFile(file.toFile(), file.getFileName().toString());
-                            if ("plugin_massupload_insertmode_barcode".equals(insertMode)) {
-                                Callable<String> readBarcodeTask = () -> readBarcode(muf.getFile(), BarcodeFormat.CODE_128);
-                                Future<String> futureBarcode = this.barcodePool.submit(readBarcodeTask);
-                                String barcodeInfo = null;
-                                barcodeInfo = futureBarcode.get();
-                                muf.setCheckedForBarcode(true);
-
-                                muf.setBarcodeValue(Optional.ofNullable(barcodeInfo));
-                            } else {
-                                assignProcessByFilename(muf, null);
+                try (DirectoryStream<Path> folderContent = Files.newDirectoryStream(folder.toPath())) {
+                    for (Path file : folderContent) {
+                        String filename = file.getFileName().toString();
+                        if (".DS_Store".equals(filename)) {
+                            continue;
+                        }
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            continue;
+                        }
+                        MassUploadedFile muf = previousFiles.remove(filename);
+                        if (muf == null || muf.getFileSize() != attributes.size() || muf.getLastModified() != attributes.lastModifiedTime().toMillis()
+                                || (!barcodeMode && muf.getStatus() != MassUploadedFileStatus.OK)) {
+                            // new or changed file, files without a process are searched again
+                            muf = batch.createFile(folder, filename);
+                            muf.setFileSize(attributes.size());
+                            muf.setLastModified(attributes.lastModifiedTime().toMillis());
+                            changedFiles.add(muf);
+                            if (barcodeMode) {
+                                barcodeQueue.submit(muf);
                             }
-                            uploadedFiles.add(muf);
                         }
+                        files.add(muf);
+                    }
+                }
+                boolean filesRemoved = !previousFiles.isEmpty();
+                if (barcodeMode && (filesRemoved || !changedFiles.isEmpty())) {
+                    // the barcodes are passed on to the following pages, so all files need to be assigned again
+                    for (MassUploadedFile muf : files) {
+                        muf.setStatus(MassUploadedFileStatus.UNKNWON);
+                        muf.setStatusmessage(FileMessage.NONE);
+                    }
+                }
+                stepIDs = new HashSet<>();
+                for (MassUploadedFile muf : files) {
+                    if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                        stepIDs.add(muf.getStepId());
                     }
                 }
+                setUploadedFiles(files);
+                scannedFolder = folder;
+                if (!barcodeMode) {
+                    assignProcessesByFilename(changedFiles);
+                }
             } else {
+                setUploadedFiles(new ArrayList<>());
+                stepIDs = new HashSet<>();
+                scannedFolder = null;
                 Helper.setFehlerMeldung("Folder " + folder.getAbsolutePath() + " does not exist or is not readable.");
             }
         } catch (Exception e) {
@@ -296,193 +382,435 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
 
     }
 
+    /**
+     * Use the stored barcode results of the given folder, so that unchanged files are not analysed again
+     * 
+     * @param folder
+     */
+    private void useBarcodeCache(File folder) {
+        if (barcodeCacheSize <= 0) {
+            return;
+        }
+        BarcodeResultCache cache = barcodeQueue.getCache();
+        if (cache == null || !cache.getFolder().equals(folder)) {
+            barcodeQueue.setCache(new BarcodeResultCache(folder, barcodeReader.getConfigurationKey(), barcodeCacheSize));
+        }
+    }
+
     /**
      * Cancel the entire process and delete the uploaded files
      */
     public void cleanUploadFolder() {
+        if (currentlyInserting.get()) {
+            Helper.setFehlerMeldung("plugin_massupload_insertionRunning");
+            return;
+        }
+        finishJournal();
+        scannedFolder = null;
+        batch.clear();
+        batchMetrics = new UploadMetrics();
         if (useUpload) {
             for (MassUploadedFile uploadedFile : uploadedFiles) {
                 uploadedFile.getFile().delete(); //NOSONAR
             }
         }
-        uploadedFiles = new ArrayList<>();
+        setUploadedFiles(new ArrayList<>());
         finishedInserts = new ArrayList<>();
         stepIDs = new HashSet<>();
     }
 
     /**
-     * All uploaded files shall now be moved to the correct processes
+     * All uploaded files shall now be moved to the correct processes. Copying and closing the steps runs in the background, the progress can be
+     * followed with {@link #getInsertProgress()}.
      */
     public void startInserting() {
 
         this.hideInsertButtonAfterClick = true;
-        if (this.currentlyInserting) {
+        if (!currentlyInserting.compareAndSet(false, true)) {
             return;
         }
 
         readUser();
 
-        try {
-            this.currentlyInserting = true;
-
-            if (copyImagesViaGoobiScript) {
+        if (copyImagesViaGoobiScript) {
+            try {
                 GoobiScriptCopyImages gsci = new GoobiScriptCopyImages();
                 gsci.setUploadedFiles(uploadedFiles);
                 gsci.setUser(user);
+                gsci.setTransferMode(transferMode);
+                gsci.setVerifyAlgorithm(verifyAlgorithm);
+                gsci.setDuplicateDetector(duplicateDetector);
+                gsci.setJobPerProcess(goobiScriptJobPerProcess);
+                gsci.setMetrics(batchMetrics);
+                batchMetrics = new UploadMetrics();
+                // the GoobiScript jobs finish the journal when they are done
+                gsci.setJournal(openJournal());
+                insertJournal = null;
                 List<GoobiScriptResult> goobiScriptResults = gsci.prepare(null, "copyFiles for mass upload", null);
                 GoobiScriptManager gsm = Helper.getBeanByClass(GoobiScriptManager.class);
                 gsm.enqueueScripts(goobiScriptResults);
                 gsm.startWork();
                 Helper.setMeldung("plugin_massupload_insertionStartedViaGoobiScript");
+            } finally {
+                currentlyInserting.set(false);
+            }
+            return;
+        }
 
-            } else {
-                for (MassUploadedFile muf : uploadedFiles) {
-                    if (muf.getStatus() == MassUploadedFileStatus.OK) {
-                        Path src = Paths.get(muf.getFile().getAbsolutePath());
-                        Path target = Paths.get(muf.getProcessFolder(), muf.getFilename());
-                        try {
-                            StorageProvider.getInstance().copyFile(src, target);
-                        } catch (IOException e) {
-                            muf.setStatus(MassUploadedFileStatus.ERROR);
-                            muf.setStatusmessage("File could not be copied to: " + target.toString());
-                            log.error("Error while copying file during mass upload", e);
-                            Helper.setFehlerMeldung("Error while copying file during mass upload", e);
-                        }
-                        muf.getFile().delete(); //NOSONAR
-                    } else {
-                        Helper.setFehlerMeldung("File could not be matched and gets skipped: " + muf.getFilename());
-                    }
+        List<MassUploadedFile> allFiles = new ArrayList<>(uploadedFiles);
+        List<MassUploadedFile> filesToCopy = new ArrayList<>();
+        for (MassUploadedFile muf : allFiles) {
+            if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                // files copied by a cancelled run are not copied again
+                if (!muf.isTransfered()) {
+                    filesToCopy.add(muf);
                 }
+            } else {
+                Helper.setFehlerMeldung("File could not be matched and gets skipped: " + muf.getFilename());
+            }
+        }
+        InsertJournal journal = openJournal();
+        if (journal != null) {
+            for (MassUploadedFile muf : filesToCopy) {
+                journal.planned(muf);
+            }
+        }
+        startInsertJob(allFiles, filesToCopy, new HashSet<>(stepIDs), journal);
+    }
 
-                // all images are uploaded, so we close the workflow step now
-                // first remove all stepIds which had errors
-                for (MassUploadedFile muf : uploadedFiles) {
-                    if (muf.getStatus() != MassUploadedFileStatus.OK) {
-                        stepIDs.remove(muf.getStepId());
-                    }
-                }
+    /**
+     * Continue a batch that was interrupted by a restart. Files that are still in the upload folder are copied, the steps of all processes whose
+     * files are complete are closed.
+     * 
+     * @param name name of the journal
+     */
+    public void resumeInterruptedBatch(String name) {
+        InsertJournal.State state = findInterruptedBatch(name);
+        if (state == null || !currentlyInserting.compareAndSet(false, true)) {
+            return;
+        }
+        readUser();
+        InsertJournal journal;
+        try {
+            journal = InsertJournal.open(state);
+        } catch (IOException e) {
+            currentlyInserting.set(false);
+            log.error("Mass upload journal could not be opened: " + state.getFile(), e);
+            Helper.setFehlerMeldung("Mass upload journal could not be opened: " + state.getFile(), e);
+            return;
+        }
+        List<MassUploadedFile> allFiles = new ArrayList<>();
+        List<MassUploadedFile> filesToCopy = new ArrayList<>();
+        Set<Integer> steps = new HashSet<>();
+        for (InsertJournal.Entry entry : state.getEntries().values()) {
+            File source = new File(entry.getSource());
+            Path target = Paths.get(entry.getTarget());
+            MassUploadedFile muf = batch.createFile(source.getParentFile(), target.getFileName().toString());
+            muf.setProcess(batch.getProcess(entry.getProcessId(), entry.getProcessTitle(), target.getParent().toString(), entry.getStepId()));
+            muf.setChecksum(entry.getChecksum());
+            muf.setStatus(MassUploadedFileStatus.OK);
+            if (entry.isCopied()) {
+                muf.setTransfered(true);
+            } else if (!source.exists() && Files.exists(target)) {
+                // copied, but the application stopped before it was recorded
+                muf.setTransfered(true);
+                journal.copied(muf);
+            } else if (!source.exists()) {
+                muf.setStatus(MassUploadedFileStatus.ERROR);
+                muf.setStatusmessage(FileMessage.FILE_MISSING, source.getAbsolutePath());
+                journal.failed(muf);
+            } else {
+                filesToCopy.add(muf);
+            }
+            if (!state.getClosedSteps().contains(entry.getStepId())) {
+                steps.add(entry.getStepId());
+            }
+            allFiles.add(muf);
+        }
+        useUpload = false;
+        scannedFolder = null;
+        setUploadedFiles(allFiles);
+        finishedInserts = new ArrayList<>();
+        stepIDs = new HashSet<>(steps);
+        interruptedBatches = null;
+        hideInsertButtonAfterClick = true;
+        startInsertJob(allFiles, filesToCopy, steps, journal);
+    }
 
-                // all others can be finished now
-                for (Integer id : stepIDs) {
-                    Step so = StepManager.getStepById(id);
-                    if (so.getValidationPlugin() != null && so.getValidationPlugin().length() > 0) {
-                        IValidatorPlugin ivp = (IValidatorPlugin) PluginLoader.getPluginByTitle(PluginType.Validation, so.getValidationPlugin());
-                        ivp.setStep(so);
-                        if (!ivp.validate()) {
-                            log.error("Error while closing the step " + so.getTitel() + " for process " + so.getProzess().getTitel());
-                            Helper.setFehlerMeldung("Error while closing the step " + so.getTitel() + " for process " + so.getProzess().getTitel());
-                        }
+    /**
+     * Delete the journal of an interrupted batch, it cannot be continued afterwards
+     * 
+     * @param name name of the journal
+     */
+    public void discardInterruptedBatch(String name) {
+        InsertJournal.State state = findInterruptedBatch(name);
+        if (state != null) {
+            InsertJournal.discard(state.getFile());
+            interruptedBatches = null;
+        }
+    }
+
+    /**
+     * Get the batches of the current user that were not finished, the list is read once per session
+     * 
+     * @return
+     */
+    public List<InsertJournal.State> getInterruptedBatches() {
+        if (interruptedBatches == null) {
+            readUser();
+            List<InsertJournal.State> batches = new ArrayList<>();
+            if (user != null) {
+                for (Path file : InsertJournal.findInterrupted(Paths.get(journalFolder), user.getLogin())) {
+                    try {
+                        batches.add(InsertJournal.read(file));
+                    } catch (IOException e) {
+                        log.error("Mass upload journal could not be read: " + file, e);
                     }
-                    Helper.addMessageToProcessJournal(so.getProcessId(), LogType.DEBUG,
-                            "Images uploaded and step " + so.getTitel() + " finished using Massupload Plugin.");
-                    HelperSchritte hs = new HelperSchritte();
-                    so.setBearbeitungsbenutzer(user);
-                    hs.CloseStepObjectAutomatic(so);
-                    finishedInserts.add(new MassUploadedProcess(so));
                 }
+            }
+            interruptedBatches = batches;
+        }
+        return interruptedBatches;
+    }
 
-                Helper.setMeldung("plugin_massupload_allFilesInserted");
+    private InsertJournal.State findInterruptedBatch(String name) {
+        for (InsertJournal.State state : getInterruptedBatches()) {
+            if (state.getName().equals(name)) {
+                return state;
             }
-        } finally {
-            this.currentlyInserting = false;
         }
+        return null;
     }
 
     /**
-     * check for uploaded file if a correct process can be found and assigned
+     * Get the journal of the current batch, a new one is started if there is none
      * 
-     * @param uploadedFile
+     * @return the journal or null, if it could not be created
      */
-    private void assignProcessByFilename(MassUploadedFile uploadedFile, Map<String, List<Process>> searchCache) {
-        // get the relevant part of the file name
-        String identifier = uploadedFile.getFilename().substring(0, uploadedFile.getFilename().lastIndexOf("."));
-        if ("prefix".equals(filenamePart) && identifier.contains(filenameSeparator)) {
-            identifier = identifier.substring(0, identifier.lastIndexOf(filenameSeparator));
+    private InsertJournal openJournal() {
+        if (insertJournal == null) {
+            try {
+                insertJournal = InsertJournal.create(Paths.get(journalFolder), user.getLogin());
+            } catch (IOException e) {
+                log.error("Mass upload journal could not be created in " + journalFolder, e);
+                Helper.setFehlerMeldung("Mass upload journal could not be created, the batch cannot be resumed after a restart", e);
+            }
         }
-        if ("suffix".equals(filenamePart) && identifier.contains(filenameSeparator)) {
-            identifier = identifier.substring(identifier.lastIndexOf(filenameSeparator) + 1, identifier.length());
+        return insertJournal;
+    }
+
+    /**
+     * Finish the journal of the current batch, if there is one
+     */
+    private void finishJournal() {
+        if (insertJournal != null) {
+            insertJournal.finish();
+            insertJournal = null;
         }
+    }
 
-        assignProcess(uploadedFile, searchCache, identifier);
+    private void startInsertJob(List<MassUploadedFile> allFiles, List<MassUploadedFile> filesToCopy, Set<Integer> steps, InsertJournal journal) {
+        InsertProgress progress = new InsertProgress(filesToCopy.size());
+        insertProgress = progress;
+        insertJournal = journal;
+        UploadMetrics metrics = batchMetrics;
+        scheduler.submitJob(() -> insertFiles(allFiles, filesToCopy, steps, progress, journal, metrics));
     }
 
-    public void assignProcess(MassUploadedFile uploadedFile, Map<String, List<Process>> searchCache, String identifier) {
-        // get all matching processes
-        // first try to get this from the cache
-        List<Process> hitlist = null;
-        if ("exact".equals(processTitleMatchType)) {
-            hitlist = searchCache == null ? null : searchCache.get(identifier);
-            if (hitlist == null) {
-                Process p = ProcessManager.getProcessByExactTitle(identifier);
-                if (p != null) {
-                    hitlist = new ArrayList<>();
-                    hitlist.add(p);
-                    if (searchCache != null) {
-                        searchCache.put(identifier, hitlist);
-                    }
+    /**
+     * Copy the files and close the steps of all processes whose files were all copied. This runs in the background, all messages are collected in
+     * the progress.
+     * 
+     * @param allFiles
+     * @param filesToCopy
+     * @param steps
+     * @param progress
+     * @param journal
+     * @param metrics
+     */
+    private void insertFiles(List<MassUploadedFile> allFiles, List<MassUploadedFile> filesToCopy, Set<Integer> steps, InsertProgress progress,
+            InsertJournal journal, UploadMetrics metrics) {
+        List<MassUploadedProcess> closedProcesses = new ArrayList<>();
+        try {
+            long totalBytes = 0;
+            for (MassUploadedFile muf : filesToCopy) {
+                totalBytes += muf.getFile().length();
+            }
+            progress.setTotalBytes(totalBytes);
+            transferEngine.transfer(filesToCopy, progress, journal, metrics);
+            for (MassUploadedFile muf : filesToCopy) {
+                if (muf.getStatus() == MassUploadedFileStatus.ERROR) {
+                    progress.addError("Error while copying file during mass upload: " + muf.getStatusmessage());
                 }
             }
-        } else {
-            String filter = FilterHelper.criteriaBuilder(identifier, false, null, null, null, true, false);
-            hitlist = searchCache == null ? null : searchCache.get(filter);
-            if (hitlist == null) {
-                // there was no result in the cache. Get result from the DB and then add it to the cache.
-                hitlist = ProcessManager.getProcesses("prozesse.titel", filter, 0, 5, null);
-                if (searchCache != null) {
-                    searchCache.put(filter, hitlist);
+
+            // all images are uploaded, so we close the workflow step now
+            // first remove all stepIds which had errors or were not copied because of a cancellation
+            for (MassUploadedFile muf : allFiles) {
+                if (muf.getStatus() != MassUploadedFileStatus.OK || !muf.isTransfered()) {
+                    steps.remove(muf.getStepId());
                 }
             }
-        }
 
-        // if list is empty
-        if (hitlist == null || hitlist.isEmpty()) {
-            uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
-            uploadedFile.setStatusmessage("No matching process found for this image.");
-        } else // if list is bigger then one hit
-        if (hitlist.size() > 1) {
-            StringBuilder processtitles = new StringBuilder();
-            for (Process process : hitlist) {
-                processtitles.append(process.getTitel()).append(", ");
+            // all others can be finished now
+            progress.setPhase(InsertProgress.Phase.CLOSING);
+            StepCloser.Result closeResult = stepCloser.close(steps, user, journal, metrics);
+            closedProcesses.addAll(closeResult.getFinishedProcesses());
+            List<MassUploadedProcess> finished = new ArrayList<>(finishedInserts);
+            finished.addAll(closeResult.getFinishedProcesses());
+            finishedInserts = finished;
+            for (MassUploadedProcess mup : closeResult.getFinishedProcesses()) {
+                stepIDs.remove(mup.getStepId());
             }
-            uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
-            uploadedFile.setStatusmessage("More than one matching process where found for this image: " + processtitles.toString());
-        } else {
-            // we have just one hit and take it
-            Process p = hitlist.get(0);
-            uploadedFile.setProcessId(p.getId());
-            uploadedFile.setProcessTitle(p.getTitel());
-            try {
-                uploadedFile.setProcessFolder(p.getImagesOrigDirectory(false));
-            } catch (IOException | SwapException | DAOException e) {
-                uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
-                uploadedFile.setStatusmessage("Error getting the master folder: " + e.getMessage());
+            for (String message : closeResult.getFailures().values()) {
+                progress.addError(message);
             }
-
-            if (uploadedFile.getStatus() != MassUploadedFileStatus.ERROR) {
-                // check if one of the open workflow steps is named as expected
-                boolean workflowStepAsExpected = false;
-
-                for (Step s : p.getSchritte()) {
-                    if (s.getBearbeitungsstatusEnum() == StepStatus.OPEN) {
-                        for (String st : stepTitles) {
-                            if (st.equals(s.getTitel())) {
-                                workflowStepAsExpected = true;
-                                uploadedFile.setStepId(s.getId());
-                                stepIDs.add(s.getId());
-                            }
-                        }
-                    }
+        } catch (InterruptedException e) {
+            log.error("Inserting files during mass upload was interrupted", e);
+            progress.addError("Inserting files during mass upload was interrupted");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Error while inserting files during mass upload", e);
+            progress.addError("Error while inserting files during mass upload: " + e.getMessage());
+        } finally {
+            if (progress.isCancelRequested()) {
+                // allow to continue with the remaining files
+                hideInsertButtonAfterClick = false;
+                progress.setPhase(InsertProgress.Phase.CANCELLED);
+            } else {
+                if (journal != null && insertJournal == journal) {
+                    finishJournal();
                 }
-
-                // if correct open step was found, remember it
-                if (workflowStepAsExpected) {
-                    uploadedFile.setStatus(MassUploadedFileStatus.OK);
-                } else {
-                    uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
-                    uploadedFile.setStatusmessage(
-                            "Process could be found, but there is no open workflow step with correct naming that could be accepted.");
+                writeSummary(metrics, closedProcesses);
+                if (batchMetrics == metrics) {
+                    batchMetrics = new UploadMetrics();
                 }
+                progress.setPhase(InsertProgress.Phase.FINISHED);
             }
+            currentlyInserting.set(false);
+        }
+    }
+
+    /**
+     * Write the timings of the finished batch to the log and to the journals of the processes that got their files
+     * 
+     * @param metrics
+     * @param processes
+     */
+    private void writeSummary(UploadMetrics metrics, List<MassUploadedProcess> processes) {
+        String summary = metrics.finishBatch();
+        log.info(summary);
+        try {
+            for (MassUploadedProcess mup : processes) {
+                Helper.addMessageToProcessJournal(mup.getProcessId(), LogType.DEBUG, summary);
+            }
+        } catch (RuntimeException e) {
+            log.error("Summary of the mass upload could not be written to the process journal", e);
+        }
+    }
+
+    /**
+     * Stop the running insert after the files that are currently copied
+     */
+    public void cancelInserting() {
+        if (insertProgress != null) {
+            insertProgress.cancel();
+        }
+    }
+
+    /**
+     * Called regularly by the user interface while inserting. When the job is done, its messages are shown and the file list gets updated once.
+     */
+    public void checkInsertProgress() {
+        if (insertProgress == null || !insertProgress.markReported()) {
+            return;
+        }
+        for (String message : insertProgress.getErrors()) {
+            Helper.setFehlerMeldung(message);
+        }
+        if (insertProgress.getPhase() == InsertProgress.Phase.CANCELLED) {
+            Helper.setMeldung("plugin_massupload_insertionCancelled");
+        } else {
+            Helper.setMeldung("plugin_massupload_allFilesInserted");
+        }
+        PrimeFaces.current().ajax().update("uploadBox:actionform", "uploadBox:actionarea");
+    }
+
+    /**
+     * Called regularly by the user interface. Only the parts of the page that changed since the last call are updated. The client stops asking as
+     * soon as no analysis or insert is running anymore.
+     */
+    public void pollChanges() {
+        checkInsertProgress();
+        List<String> updates = new ArrayList<>();
+        String tableState = uploadedFiles.size() + "/" + statusSummary.getVersion();
+        if (!tableState.equals(renderedTableState)) {
+            renderedTableState = tableState;
+            updates.add("uploadBox:actionform");
+        }
+        String actionState = analyzingBarcodes + "/" + getShowInsertButton();
+        if (!actionState.equals(renderedActionState)) {
+            renderedActionState = actionState;
+            updates.add("uploadBox:actionarea");
+        }
+        InsertProgress progress = insertProgress;
+        String progressState = progress == null ? "" : progress.getDoneFiles() + "/" + progress.getPhase() + "/" + progress.getErrors().size();
+        if (!progressState.equals(renderedProgressState)) {
+            renderedProgressState = progressState;
+            updates.add("uploadBox:insertProgressForm");
+        }
+        boolean active = analyzingBarcodes || currentlyInserting.get() || barcodeQueue.getPendingCount() > 0 || (progress != null && !progress.isReported());
+        PrimeFaces.current().ajax().addCallbackParam("active", active);
+        PrimeFaces.current().ajax().addCallbackParam("changed", !updates.isEmpty());
+        if (!updates.isEmpty()) {
+            PrimeFaces.current().ajax().update(updates);
+        }
+    }
+
+    public boolean isCurrentlyInserting() {
+        return currentlyInserting.get();
+    }
+
+    /**
+     * check for the uploaded files if a correct process can be found and assigned. All processes are searched together before the files get
+     * assigned.
+     * 
+     * @param files
+     */
+    private void assignProcessesByFilename(List<MassUploadedFile> files) {
+        List<String> identifiers = new ArrayList<>(files.size());
+        for (MassUploadedFile muf : files) {
+            identifiers.add(getIdentifierFromFilename(muf.getFilename()));
+        }
+        Map<String, List<Process>> searchCache = processMatcher.resolve(identifiers, batchMetrics);
+        for (int i = 0; i < files.size(); i++) {
+            assignProcess(files.get(i), searchCache, identifiers.get(i));
+        }
+    }
+
+    private String readBarcode(File file) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return barcodeReader.readBarcode(file);
+        } finally {
+            batchMetrics.record(UploadMetrics.Phase.BARCODE, start, file.length());
+        }
+    }
+
+    /**
+     * get the relevant part of the file name
+     * 
+     * @param filename
+     * @return
+     */
+    private String getIdentifierFromFilename(String filename) {
+        return IdentifierExtractor.extract(filename, filenamePart, filenameSeparator);
+    }
+
+    public void assignProcess(MassUploadedFile uploadedFile, Map<String, List<Process>> searchCache, String identifier) {
+        processMatcher.assign(uploadedFile, searchCache, identifier, batch, batchMetrics);
+        if (uploadedFile.getStatus() == MassUploadedFileStatus.OK) {
+            stepIDs.add(uploadedFile.getStepId());
         }
     }
 
@@ -492,57 +820,78 @@ public class MassUploadPlugin implements IWorkflowPlugin, IPlugin {
             return false;
         }
 
-        if (currentlyInserting) {
+        if (currentlyInserting.get()) {
             return false;
 
         }
-        return !this.uploadedFiles.isEmpty() && this.uploadedFiles.stream().allMatch(muf -> muf.getStatus() != MassUploadedFileStatus.UNKNWON);
+        return !this.uploadedFiles.isEmpty() && statusSummary.getUnknown() == 0;
+    }
+
+    /**
+     * Replace the list of files, the status numbers are counted once and updated by the files afterwards
+     * 
+     * @param uploadedFiles
+     */
+    public void setUploadedFiles(List<MassUploadedFile> uploadedFiles) {
+        StatusSummary summary = new StatusSummary();
+        summary.addAll(uploadedFiles);
+        this.statusSummary = summary;
+        this.uploadedFiles = uploadedFiles;
     }
 
     public boolean isShowInsertButton() {
         return getShowInsertButton();
     }
 
-    public void assignProcessesWithBarcodeInfo() {
+    public synchronized void assignProcessesWithBarcodeInfo() {
+        if (this.analyzingBarcodes) {
+            return;
+        }
         this.analyzingBarcodes = true;
         Runnable myRunnable = () -> {
-            String currentBarcode = "";
-            Map<String, List<Process>> searchCache = new HashMap<>();
-            this.uploadedFiles.sort(Comparator.comparing(MassUploadedFile::getFilename));
-            for (MassUploadedFile muf : this.uploadedFiles) {
-                try {
-                    if (!muf.isCheckedForBarcode()) {
-                        String barcodeInfo = readBarcode(muf.getFile(), BarcodeFormat.CODE_128);
-                        muf.setBarcodeValue(Optional.ofNullable(barcodeInfo));
-                    }
-                    if (muf.getBarcodeValue().isPresent()) {
-                        currentBarcode = muf.getBarcodeValue().get();
-                    }
-                } catch (IOException e) {
-                    log.error(e);
+            try {
+                // uploads may still add files, so the analysis works on a copy
+                List<MassUploadedFile> files;
+                synchronized (this) {
+                    files = new ArrayList<>(this.uploadedFiles);
                 }
-                assignProcess(muf, searchCache, currentBarcode);
+                files.sort(Comparator.comparing(MassUploadedFile::getFilename));
+                // decode all images in parallel first, the barcode propagation needs the page order and is done afterwards
+                barcodeQueue.submitAll(files);
+                barcodeQueue.awaitAll();
+                barcodeQueue.saveCache();
+                List<String> identifiers = ProcessMatcher.getBarcodeIdentifiers(files);
+                Map<String, List<Process>> searchCache = processMatcher.resolve(identifiers, batchMetrics);
+                for (int i = 0; i < files.size(); i++) {
+                    assignProcess(files.get(i), searchCache, identifiers.get(i));
+                }
+                publishSortedFiles(files);
+            } catch (InterruptedException e) {
+                log.error(e);
+                Thread.currentThread().interrupt();
+            } finally {
+                this.analyzingBarcodes = false;
             }
-            this.analyzingBarcodes = false;
         };
-        new Thread(myRunnable).start();
+        scheduler.submitJob(myRunnable);
     }
 
-    private static String readBarcode(File inputFile, BarcodeFormat format) throws IOException {
-        BufferedImage bufferedImage = ImageIO.read(inputFile);
-        LuminanceSource source = new BufferedImageLuminanceSource(bufferedImage);
-        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-        try {
-            Map<DecodeHintType, Boolean> hints = new TreeMap<>();
-            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
-            Result result = new MultiFormatReader().decode(bitmap, hints);
-            if (result.getBarcodeFormat() == format) {
-                return result.getText();
+    /**
+     * Replace the list of files with the sorted list. Files uploaded during the analysis are added at the end, they are assigned by the next
+     * analysis.
+     * 
+     * @param sortedFiles
+     */
+    private synchronized void publishSortedFiles(List<MassUploadedFile> sortedFiles) {
+        Set<MassUploadedFile> known = Collections.newSetFromMap(new IdentityHashMap<>());
+        known.addAll(sortedFiles);
+        List<MassUploadedFile> files = new ArrayList<>(sortedFiles);
+        for (MassUploadedFile muf : this.uploadedFiles) {
+            if (!known.contains(muf)) {
+                files.add(muf);
             }
-        } catch (NotFoundException e) {
-            log.debug("There is no QR code in the image {}", inputFile.getName());
         }
-        return null;
+        this.uploadedFiles = files;
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Reads the barcodes of uploaded files in the background using the shared scheduler. The number of waiting files is limited, if the queue is full
+ * the submitting thread decodes the file itself and gets slowed down that way.
+ */
+@Log4j2
+public class BarcodeDecodingQueue {
+
+    @FunctionalInterface
+    public interface Decoder {
+        String decode(File file) throws IOException;
+    }
+
+    private final Decoder decoder;
+    private final MassUploadScheduler scheduler;
+    private final String key;
+    private final int threads;
+    // places for waiting and running files
+    private final Semaphore queueSpace;
+    // files are mutable and compare by value, so the running tasks are tracked by identity
+    private final Map<MassUploadedFile, Future<?>> pending = Collections.synchronizedMap(new IdentityHashMap<>());
+    private volatile BarcodeResultCache cache;
+
+    /**
+     * @param scheduler scheduler that runs the detection
+     * @param key queue of the files in the scheduler
+     * @param threads maximum number of files analysed in parallel
+     * @param queueSize maximum number of files waiting for the analysis
+     * @param decoder
+     */
+    public BarcodeDecodingQueue(MassUploadScheduler scheduler, String key, int threads, int queueSize, Decoder decoder) {
+        this.decoder = decoder;
+        this.scheduler = scheduler;
+        this.key = key;
+        this.threads = threads;
+        this.queueSpace = new Semaphore(Math.max(1, queueSize) + threads);
+    }
+
+    /**
+     * Schedule the barcode detection for a file. The result is written into the file as soon as it is available.
+     *
+     * @param muf
+     */
+    public void submit(MassUploadedFile muf) {
+        if (muf.isCheckedForBarcode() || pending.containsKey(muf)) {
+            return;
+        }
+        BarcodeResultCache currentCache = cache;
+        if (currentCache != null && currentCache.lookup(muf)) {
+            return;
+        }
+        // register before submitting, the task may run and finish before submit() returns
+        synchronized (pending) {
+            pending.put(muf, null);
+        }
+        if (!queueSpace.tryAcquire()) {
+            // the queue is full, the submitting thread does the work itself
+            decode(muf);
+            return;
+        }
+        try {
+            Future<?> future = scheduler.submit(key, threads, () -> {
+                try {
+                    decode(muf);
+                } finally {
+                    queueSpace.release();
+                }
+            });
+            synchronized (pending) {
+                if (pending.containsKey(muf)) {
+                    pending.put(muf, future);
+                }
+            }
+        } catch (RuntimeException e) {
+            queueSpace.release();
+            pending.remove(muf);
+            throw e;
+        }
+    }
+
+    /**
+     * Schedule all files that were not checked yet
+     *
+     * @param files
+     */
+    public void submitAll(List<MassUploadedFile> files) {
+        for (MassUploadedFile muf : files) {
+            submit(muf);
+        }
+    }
+
+    /**
+     * Wait until all scheduled files are analysed. Each finished file wakes up the waiting thread.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitAll() throws InterruptedException {
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                // a task cancelled by a stopped scheduler never runs and never removes its file
+                pending.values().removeIf(future -> future != null && future.isCancelled());
+                if (!pending.isEmpty()) {
+                    // the timeout only lets the loop notice cancelled tasks
+                    pending.wait(1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Use the given cache to look up and store results. Set to null to disable the cache.
+     *
+     * @param cache
+     */
+    public void setCache(BarcodeResultCache cache) {
+        BarcodeResultCache oldCache = this.cache;
+        this.cache = cache;
+        if (oldCache != null && oldCache != cache) {
+            oldCache.save();
+        }
+    }
+
+    public BarcodeResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Write the cached results to disk
+     */
+    public void saveCache() {
+        BarcodeResultCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.save();
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Cancel all waiting files, the queue cannot be used afterwards
+     */
+    public void shutdown() {
+        synchronized (pending) {
+            for (Future<?> future : pending.values()) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            pending.clear();
+            pending.notifyAll();
+        }
+    }
+
+    private void decode(MassUploadedFile muf) {
+        BarcodeResultCache currentCache = cache;
+        try {
+            String barcodeInfo = null;
+            try {
+                barcodeInfo = decoder.decode(muf.getFile());
+                if (currentCache != null) {
+                    currentCache.put(muf.getFile(), barcodeInfo);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Error while reading barcode from file " + muf.getFilename(), e);
+            }
+            muf.setBarcodeValue(Optional.ofNullable(barcodeInfo));
+            muf.setCheckedForBarcode(true);
+        } finally {
+            synchronized (pending) {
+                pending.remove(muf);
+                if (pending.isEmpty()) {
+                    pending.notifyAll();
+                }
+            }
+        }
+        if (currentCache != null && pending.isEmpty()) {
+            currentCache.saveIfDue();
+        }
+    }
+}
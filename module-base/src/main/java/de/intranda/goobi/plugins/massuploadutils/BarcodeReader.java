@@ -0,0 +1,215 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Detects barcodes in images. To save memory on large master images, a subsampled image or only a part of it can be read first. The full image is
+ * only analysed if nothing was found in the reduced image.
+ * 
+ * Each image is searched with a fast pass first. The expensive search with TRY_HARDER is only used, if the fast pass did not find anything. The
+ * search is restricted to the configured barcode formats.
+ */
+@Log4j2
+public class BarcodeReader {
+
+    private static final Rectangle2D FULL_IMAGE = new Rectangle2D.Double(0, 0, 1, 1);
+
+    private final int subsampling;
+    // region relative to the image size, all values between 0 and 1
+    private final Rectangle2D region;
+    private final boolean fullResolutionFallback;
+    private final Set<BarcodeFormat> formats;
+    private final boolean tryHarder;
+
+    // the readers keep their hints and can be reused, but they are not thread safe
+    private final ThreadLocal<MultiFormatReader> fastReader;
+    private final ThreadLocal<MultiFormatReader> thoroughReader;
+
+    /**
+     * @param subsampling read only every n-th pixel in each direction in the first pass, 1 disables the subsampling
+     * @param region part of the image to read in the first pass, given in fractions of width and height, null for the whole image
+     * @param fullResolutionFallback analyse the full image if the first pass did not find a barcode
+     * @param formats the barcode formats to search for
+     * @param tryHarder search again with TRY_HARDER if the fast search did not find a barcode
+     */
+    public BarcodeReader(int subsampling, Rectangle2D region, boolean fullResolutionFallback, Collection<BarcodeFormat> formats, boolean tryHarder) {
+        this.subsampling = Math.max(1, subsampling);
+        Rectangle2D intersection = region == null ? FULL_IMAGE : region.createIntersection(FULL_IMAGE);
+        if (intersection.isEmpty()) {
+            log.warn("Barcode region {} lies outside of the image, the whole image is searched", region);
+            intersection = FULL_IMAGE;
+        }
+        this.region = intersection;
+        this.fullResolutionFallback = fullResolutionFallback;
+        this.formats = formats == null || formats.isEmpty() ? EnumSet.of(BarcodeFormat.CODE_128) : EnumSet.copyOf(formats);
+        this.tryHarder = tryHarder;
+        fastReader = ThreadLocal.withInitial(() -> createReader(false));
+        thoroughReader = ThreadLocal.withInitial(() -> createReader(true));
+    }
+
+    /**
+     * Create a reader with the barcode settings of the plugin configuration
+     *
+     * @param config
+     * @return
+     */
+    public static BarcodeReader fromConfiguration(XMLConfiguration config) {
+        Rectangle2D barcodeRegion = new Rectangle2D.Double(config.getDouble("barcode-region[@x]", 0), config.getDouble("barcode-region[@y]", 0),
+                config.getDouble("barcode-region[@width]", 1), config.getDouble("barcode-region[@height]", 1));
+        List<BarcodeFormat> barcodeFormats = new ArrayList<>();
+        for (String format : config.getStringArray("barcode-format")) {
+            try {
+                barcodeFormats.add(BarcodeFormat.valueOf(format.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                log.error("Unknown barcode format configured: " + format);
+            }
+        }
+        return new BarcodeReader(config.getInt("barcode-subsampling", 1), barcodeRegion, config.getBoolean("barcode-full-resolution-fallback", true),
+                barcodeFormats, config.getBoolean("barcode-try-harder", true));
+    }
+
+    private MultiFormatReader createReader(boolean withTryHarder) {
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, new ArrayList<>(formats));
+        if (withTryHarder) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        MultiFormatReader reader = new MultiFormatReader();
+        reader.setHints(hints);
+        return reader;
+    }
+
+    /**
+     * Describe the settings that influence the detection result, used to decide if stored results can be reused
+     *
+     * @return
+     */
+    public String getConfigurationKey() {
+        return "formats=" + formats + ";subsampling=" + subsampling + ";region=" + region + ";fallback=" + fullResolutionFallback + ";tryHarder="
+                + tryHarder;
+    }
+
+    /**
+     * Read the barcode from the image file
+     *
+     * @param inputFile
+     * @return the barcode value or null, if the image does not contain a barcode of the configured formats
+     * @throws IOException
+     */
+    public String readBarcode(File inputFile) throws IOException {
+        boolean reducedPass = subsampling > 1 || !FULL_IMAGE.equals(region);
+        if (reducedPass) {
+            String value = decode(readImage(inputFile, subsampling, region), inputFile);
+            if (value != null || !fullResolutionFallback) {
+                return value;
+            }
+        }
+        return decode(readImage(inputFile, 1, FULL_IMAGE), inputFile);
+    }
+
+    private String decode(BufferedImage bufferedImage, File inputFile) {
+        if (bufferedImage == null) {
+            log.debug("The file {} cannot be read as an image", inputFile.getName());
+            return null;
+        }
+        LuminanceSource source = new BufferedImageLuminanceSource(bufferedImage);
+        // the bitmap caches the binarized image, so the second pass does not need to binarize again
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        String value = decode(fastReader.get(), bitmap);
+        if (value == null && tryHarder) {
+            value = decode(thoroughReader.get(), bitmap);
+        }
+        if (value == null) {
+            log.debug("There is no barcode in the image {}", inputFile.getName());
+        }
+        return value;
+    }
+
+    private String decode(MultiFormatReader reader, BinaryBitmap bitmap) {
+        try {
+            Result result = reader.decodeWithState(bitmap);
+            if (formats.contains(result.getBarcodeFormat())) {
+                return result.getText();
+            }
+        } catch (NotFoundException e) {
+            // no barcode found with this reader
+        } finally {
+            reader.reset();
+        }
+        return null;
+    }
+
+    /**
+     * Read the image without decoding the pixels outside of the region or between the subsampled rows and columns
+     *
+     * @param file
+     * @param subsampling
+     * @param region
+     * @return the image or null, if there is no image reader for the file
+     * @throws IOException
+     */
+    private static BufferedImage readImage(File file, int subsampling, Rectangle2D region) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (!FULL_IMAGE.equals(region)) {
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    Rectangle sourceRegion = new Rectangle((int) (region.getX() * width), (int) (region.getY() * height),
+                            Math.max(1, (int) Math.ceil(region.getWidth() * width)), Math.max(1, (int) Math.ceil(region.getHeight() * height)));
+                    Rectangle clipped = sourceRegion.intersection(new Rectangle(width, height));
+                    // rounding can push a thin region out of the image, the whole image is read then
+                    if (!clipped.isEmpty()) {
+                        param.setSourceRegion(clipped);
+                    }
+                }
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Remembers the barcode detection results of a folder on disk, so that unchanged files don't have to be analysed again. The results are stored next
+ * to the folder and are identified by file name, size and modification date. If the barcode configuration changes, all stored results are dropped.
+ * The least recently used entries are removed when the cache is full.
+ */
+@Log4j2
+public class BarcodeResultCache {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final long SAVE_INTERVAL = 10000;
+
+    private final File folder;
+    private final Path cacheFile;
+    private final String configuration;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+    private long lastSave;
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String value;
+
+        private Entry(long size, long lastModified, String value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Open the cache for the given folder. Existing results are loaded from disk.
+     *
+     * @param folder the folder containing the images
+     * @param configuration description of the barcode settings that were used to create the results
+     * @param maxEntries maximum number of results to keep
+     */
+    public BarcodeResultCache(File folder, String configuration, int maxEntries) {
+        this.folder = folder;
+        this.cacheFile = new File(folder.getParentFile(), "." + folder.getName() + ".barcodes").toPath();
+        this.configuration = configuration;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2378470286567021434L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        load();
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Take the barcode result for the file from the cache, if the file was not changed since it was analysed
+     *
+     * @param muf
+     * @return true if the result was found
+     */
+    public synchronized boolean lookup(MassUploadedFile muf) {
+        File file = muf.getFile();
+        Entry entry = entries.get(file.getName());
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+            return false;
+        }
+        muf.setBarcodeValue(Optional.ofNullable(entry.value));
+        muf.setCheckedForBarcode(true);
+        return true;
+    }
+
+    /**
+     * Remember the barcode result of a file
+     *
+     * @param file
+     * @param value the barcode or null, if the file has none
+     */
+    public synchronized void put(File file, String value) {
+        entries.put(file.getName(), new Entry(file.length(), file.lastModified(), value));
+        dirty = true;
+    }
+
+    /**
+     * Write the cache to disk if it was changed and was not saved during the last seconds
+     */
+    public synchronized void saveIfDue() {
+        if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Write the cache to disk if it was changed
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(configuration);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.writeBoolean(e.getValue().value != null);
+                if (e.getValue().value != null) {
+                    out.writeUTF(e.getValue().value);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Barcode cache could not be written: " + cacheFile, e);
+            return;
+        }
+        try {
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            lastSave = System.currentTimeMillis();
+        } catch (IOException e) {
+            log.error("Barcode cache could not be written: " + cacheFile, e);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(cacheFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != FORMAT_VERSION || !configuration.equals(in.readUTF())) {
+                log.debug("Barcode cache {} was created with different settings and gets ignored", cacheFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String value = in.readBoolean() ? in.readUTF() : null;
+                entries.put(name, new Entry(size, lastModified, value));
+            }
+        } catch (IOException e) {
+            log.warn("Barcode cache could not be read and gets ignored: " + cacheFile, e);
+            entries.clear();
+        }
+    }
+}
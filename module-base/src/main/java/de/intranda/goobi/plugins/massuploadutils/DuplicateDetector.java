@@ -0,0 +1,225 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Finds files that don't need to be copied, because the process folder already contains an identical file with the same name. Files with a different
+ * size are never compared. In {@link DuplicateHandling#FLAG} files with the same size and modification date are taken as identical, before a file
+ * gets deleted in {@link DuplicateHandling#SKIP} the checksums are always compared. The checksum calculated during the upload is used if there is
+ * one, calculated checksums are stored in the files.
+ *
+ * Optionally the files of a process folder are compared with each other as well. As different pages can have the same content, e.g. blank pages
+ * or colour targets, such files are only flagged and never deleted, the user decides about them.
+ */
+@Log4j2
+public class DuplicateDetector {
+
+    /**
+     * The files of a process folder that were handled before, used to find the same image twice in a batch. The files of a folder must be handled
+     * one after another.
+     */
+    public static class FolderFiles {
+        private final Map<Long, List<MassUploadedFile>> filesBySize = new HashMap<>();
+    }
+
+    @Getter
+    private final DuplicateHandling handling;
+    private final String algorithm;
+    @Getter
+    private final boolean inBatch;
+
+    /**
+     * @param handling what happens with identical files
+     * @param algorithm checksum algorithm, it must be the one used during the upload
+     */
+    public DuplicateDetector(DuplicateHandling handling, String algorithm) {
+        this(handling, algorithm, false);
+    }
+
+    /**
+     * @param handling what happens with identical files
+     * @param algorithm checksum algorithm, it must be the one used during the upload
+     * @param inBatch flag files that are identical to an earlier file of the same process folder
+     */
+    public DuplicateDetector(DuplicateHandling handling, String algorithm, boolean inBatch) {
+        this.handling = handling;
+        this.algorithm = algorithm;
+        this.inBatch = inBatch;
+    }
+
+    /**
+     * Create the detector for the plugin configuration
+     *
+     * @param config
+     * @return the detector or null, if all files shall be copied
+     */
+    public static DuplicateDetector fromConfiguration(XMLConfiguration config) {
+        String value = config.getString("duplicate-handling", "copy");
+        DuplicateHandling handling;
+        try {
+            handling = DuplicateHandling.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown duplicate handling configured: " + value);
+            handling = DuplicateHandling.COPY;
+        }
+        if (handling == DuplicateHandling.COPY) {
+            return null;
+        }
+        String algorithm = config.getString("checksum-algorithm", "SHA-256");
+        return new DuplicateDetector(handling, algorithm.isEmpty() ? "SHA-256" : algorithm, config.getBoolean("duplicate-in-batch", false));
+    }
+
+    /**
+     * @return a new list of handled files for a process folder, or null if the files of a batch are not compared with each other
+     */
+    public FolderFiles newFolderFiles() {
+        return inBatch ? new FolderFiles() : null;
+    }
+
+    /**
+     * Skip or flag a file whose target exists already with the same content
+     *
+     * @param muf
+     * @param metrics metrics of the batch, can be null
+     * @return true if the file must not be copied
+     */
+    public boolean handle(MassUploadedFile muf, UploadMetrics metrics) {
+        return handle(muf, null, metrics);
+    }
+
+    /**
+     * Skip or flag a file whose target exists already with the same content. Skipped files are deleted like after a copy and count as transferred,
+     * flagged files get an error and stay in the upload folder. Files identical to an earlier file of the folder are always flagged.
+     *
+     * @param muf
+     * @param folderFiles earlier files of the process folder, null to skip the comparison with them
+     * @param metrics metrics of the batch, can be null
+     * @return true if the file must not be copied
+     */
+    public boolean handle(MassUploadedFile muf, FolderFiles folderFiles, UploadMetrics metrics) {
+        long start = System.nanoTime();
+        long[] hashedBytes = new long[1];
+        Path target = Paths.get(muf.getProcessFolder(), muf.getFilename());
+        String existing = null;
+        MassUploadedFile original = null;
+        try {
+            if (isInTarget(muf, target, hashedBytes)) {
+                existing = target.toString();
+            } else if (folderFiles != null) {
+                original = findEarlierFile(muf, folderFiles, hashedBytes);
+            }
+        } catch (IOException e) {
+            log.error("File " + muf.getFile() + " could not be compared with " + target + ", it gets copied", e);
+        }
+        // the only place where this phase is recorded, it includes the time to calculate the checksums
+        if (metrics != null) {
+            metrics.record(UploadMetrics.Phase.DUPLICATE_CHECK, start, hashedBytes[0]);
+        }
+        if (original != null) {
+            log.debug("File {} is identical to {} of the same batch", muf.getFile(), original.getFile());
+            muf.setStatus(MassUploadedFileStatus.ERROR);
+            muf.setStatusmessage(FileMessage.DUPLICATE, original.getFilename());
+            return true;
+        }
+        if (existing == null) {
+            if (folderFiles != null) {
+                folderFiles.filesBySize.computeIfAbsent(muf.getFile().length(), k -> new ArrayList<>()).add(muf);
+            }
+            return false;
+        }
+        if (handling == DuplicateHandling.SKIP) {
+            log.debug("File {} is not copied, it is identical to {}", muf.getFile(), existing);
+            muf.getFile().delete(); //NOSONAR
+            muf.setTransfered(true);
+        } else {
+            muf.setStatus(MassUploadedFileStatus.ERROR);
+            muf.setStatusmessage(FileMessage.DUPLICATE, existing);
+        }
+        return true;
+    }
+
+    /**
+     * Check if the target of a file exists with the same content
+     *
+     * @param muf
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    public boolean isInTarget(MassUploadedFile muf, Path target) throws IOException {
+        return isInTarget(muf, target, new long[1]);
+    }
+
+    private boolean isInTarget(MassUploadedFile muf, Path target, long[] hashedBytes) throws IOException {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        BasicFileAttributes targetAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+        BasicFileAttributes sourceAttributes = Files.readAttributes(muf.getFile().toPath(), BasicFileAttributes.class);
+        if (targetAttributes.size() != sourceAttributes.size()) {
+            return false;
+        }
+        // a flagged file stays in the upload folder, a skipped file gets deleted and needs the certainty of the checksum
+        if (handling == DuplicateHandling.FLAG && targetAttributes.lastModifiedTime().equals(sourceAttributes.lastModifiedTime())) {
+            return true;
+        }
+        String checksum = getChecksum(muf, hashedBytes);
+        hashedBytes[0] += targetAttributes.size();
+        return checksum.equalsIgnoreCase(FileChecksum.calculate(target, algorithm));
+    }
+
+    /**
+     * Find an earlier file of the process folder with the same content
+     *
+     * @param muf
+     * @param folderFiles
+     * @param hashedBytes bytes read for checksums, gets increased
+     * @return the earlier file or null
+     * @throws IOException
+     */
+    private MassUploadedFile findEarlierFile(MassUploadedFile muf, FolderFiles folderFiles, long[] hashedBytes) throws IOException {
+        List<MassUploadedFile> sameSize = folderFiles.filesBySize.get(muf.getFile().length());
+        if (sameSize == null) {
+            return null;
+        }
+        String checksum = getChecksum(muf, hashedBytes);
+        for (MassUploadedFile earlier : sameSize) {
+            if (checksum.equalsIgnoreCase(getChecksum(earlier, hashedBytes))) {
+                return earlier;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the checksum of a file, calculate it if the upload didn't. A file that was transferred already is read in its process folder.
+     *
+     * @param muf
+     * @param hashedBytes bytes read for checksums, gets increased
+     * @return
+     * @throws IOException
+     */
+    private String getChecksum(MassUploadedFile muf, long[] hashedBytes) throws IOException {
+        String checksum = muf.getChecksum();
+        if (checksum == null) {
+            Path file = muf.isTransfered() ? Paths.get(muf.getProcessFolder(), muf.getFilename()) : muf.getFile().toPath();
+            checksum = FileChecksum.calculate(file, algorithm);
+            hashedBytes[0] += Files.size(file);
+            muf.setChecksum(checksum);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,10 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+public enum DuplicateHandling {
+    // copy all files, existing files in the process get overwritten
+    COPY,
+    // don't copy files that exist with the same name and content in the process folder
+    SKIP,
+    // keep identical files in the upload folder and mark them with an error
+    FLAG;
+}
@@ -0,0 +1,79 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Writes and reads files with large buffers and calculates their checksum on the way
+ */
+public final class FileChecksum {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private FileChecksum() {
+    }
+
+    /**
+     * Write the stream into the target file
+     *
+     * @param in
+     * @param target
+     * @param algorithm digest algorithm like SHA-256, null or empty to skip the checksum
+     * @return the checksum as hex string or null, if no algorithm was given
+     * @throws IOException
+     */
+    public static String write(InputStream in, Path target, String algorithm) throws IOException {
+        MessageDigest digest = createDigest(algorithm);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        return digest == null ? null : HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Calculate the checksum of an existing file
+     *
+     * @param file
+     * @param algorithm digest algorithm like SHA-256
+     * @return the checksum as hex string
+     * @throws IOException
+     */
+    public static String calculate(Path file, String algorithm) throws IOException {
+        MessageDigest digest = createDigest(algorithm);
+        if (digest == null) {
+            throw new IOException("No checksum algorithm given");
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest(String algorithm) throws IOException {
+        if (algorithm == null || algorithm.isEmpty()) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unknown checksum algorithm: " + algorithm, e);
+        }
+    }
+}
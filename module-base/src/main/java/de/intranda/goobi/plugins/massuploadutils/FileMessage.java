@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+/**
+ * Status messages of the uploaded files. The files only store the message and an optional detail, the text is created when it is displayed.
+ */
+public enum FileMessage {
+
+    NONE(""),
+    NO_PROCESS("No matching process found for this image."),
+    SEVERAL_PROCESSES("More than one matching process where found for this image: "),
+    MASTER_FOLDER_ERROR("Error getting the master folder: "),
+    NO_OPEN_STEP("Process could be found, but there is no open workflow step with correct naming that could be accepted."),
+    COPY_FAILED("File could not be copied to: "),
+    FILE_MISSING("File does not exist anymore: "),
+    DUPLICATE("An identical file already exists: ");
+
+    private final String text;
+
+    FileMessage(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param detail additional information like a path, can be null
+     * @return the complete message
+     */
+    public String format(String detail) {
+        return detail == null ? text : text + detail;
+    }
+}
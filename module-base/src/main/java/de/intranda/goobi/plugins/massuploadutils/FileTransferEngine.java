@@ -0,0 +1,246 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Copies the uploaded files into the master folders of their processes using several parallel transfers. The files are grouped by process folder,
+ * so that the files of one process are written one after another. The number of parallel transfers can be limited per storage volume as well. In
+ * the virtual thread mode of the scheduler, only the limit per storage volume applies and it is shared by all users.
+ *
+ * In {@link TransferMode#MOVE} the files are renamed instead, as long as the source and the target folder are on the same file system. With a
+ * {@link DuplicateDetector}, files that exist with the same name and content in the process folder are skipped or flagged instead, and files
+ * identical to an earlier file of the same process folder can be flagged.
+ */
+@Log4j2
+public class FileTransferEngine {
+
+    private final MassUploadScheduler scheduler;
+    private final String key;
+    private final int threads;
+    private final int threadsPerVolume;
+    private final TransferMode mode;
+    private final String verifyAlgorithm;
+    private final DuplicateDetector duplicateDetector;
+
+    /**
+     * @param scheduler scheduler that runs the transfers
+     * @param key queue of the transfers in the scheduler
+     * @param threads maximum number of parallel transfers
+     * @param threadsPerVolume maximum number of parallel transfers to the same storage volume, 0 for no limit
+     * @param mode copy or move the files
+     * @param verifyAlgorithm checksum algorithm to verify copied files with, null to skip the verification
+     */
+    public FileTransferEngine(MassUploadScheduler scheduler, String key, int threads, int threadsPerVolume, TransferMode mode,
+            String verifyAlgorithm) {
+        this(scheduler, key, threads, threadsPerVolume, mode, verifyAlgorithm, null);
+    }
+
+    /**
+     * @param scheduler scheduler that runs the transfers
+     * @param key queue of the transfers in the scheduler
+     * @param threads maximum number of parallel transfers
+     * @param threadsPerVolume maximum number of parallel transfers to the same storage volume, 0 for no limit
+     * @param mode copy or move the files
+     * @param verifyAlgorithm checksum algorithm to verify copied files with, null to skip the verification
+     * @param duplicateDetector detector for files that exist already, null to copy all files
+     */
+    public FileTransferEngine(MassUploadScheduler scheduler, String key, int threads, int threadsPerVolume, TransferMode mode,
+            String verifyAlgorithm, DuplicateDetector duplicateDetector) {
+        this.scheduler = scheduler;
+        this.key = key;
+        this.threads = Math.max(1, threads);
+        this.threadsPerVolume = threadsPerVolume;
+        this.mode = mode;
+        this.verifyAlgorithm = verifyAlgorithm;
+        this.duplicateDetector = duplicateDetector;
+    }
+
+    /**
+     * Transfer all files with status OK into their process folders and delete the source files afterwards. Files that cannot be copied get the status
+     * ERROR. The method returns when all transfers are finished.
+     *
+     * @param files
+     * @throws InterruptedException
+     */
+    public void transfer(List<MassUploadedFile> files) throws InterruptedException {
+        transfer(files, null, null);
+    }
+
+    /**
+     * Transfer the files and report each finished file to the progress. If the progress gets cancelled, the remaining files are not transferred and
+     * keep their status.
+     *
+     * @param files
+     * @param progress progress to update, can be null
+     * @param journal journal to record the finished files in, can be null
+     * @throws InterruptedException
+     */
+    public void transfer(List<MassUploadedFile> files, InsertProgress progress, InsertJournal journal) throws InterruptedException {
+        transfer(files, progress, journal, null);
+    }
+
+    /**
+     * Transfer the files, report them to the progress and the journal and measure the duration of each transfer
+     *
+     * @param files
+     * @param progress progress to update, can be null
+     * @param journal journal to record the finished files in, can be null
+     * @param metrics metrics of the batch, can be null
+     * @throws InterruptedException
+     */
+    public void transfer(List<MassUploadedFile> files, InsertProgress progress, InsertJournal journal, UploadMetrics metrics)
+            throws InterruptedException {
+        Map<String, List<MassUploadedFile>> filesByFolder = new LinkedHashMap<>();
+        for (MassUploadedFile muf : files) {
+            if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                filesByFolder.computeIfAbsent(muf.getProcessFolder(), k -> new ArrayList<>()).add(muf);
+            }
+        }
+        if (filesByFolder.isEmpty()) {
+            return;
+        }
+
+        Map<String, Semaphore> volumeLimits = new HashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<MassUploadedFile>> entry : filesByFolder.entrySet()) {
+            Semaphore volumeLimit = null;
+            if (scheduler.isVirtualThreads()) {
+                // there is no pool limiting the transfers, each volume is limited for all users together
+                volumeLimit = scheduler.getVolumePermits(getVolume(Paths.get(entry.getKey())), threadsPerVolume > 0 ? threadsPerVolume : threads);
+            } else if (threadsPerVolume > 0) {
+                volumeLimit = volumeLimits.computeIfAbsent(getVolume(Paths.get(entry.getKey())), k -> new Semaphore(threadsPerVolume));
+            }
+            Semaphore limit = volumeLimit;
+            tasks.add(() -> {
+                transferFolder(entry.getValue(), limit, progress, journal, metrics);
+                return null;
+            });
+        }
+        scheduler.invokeAllWaiting(key, threads, tasks);
+    }
+
+    private void transferFolder(List<MassUploadedFile> files, Semaphore volumeLimit, InsertProgress progress, InsertJournal journal,
+            UploadMetrics metrics) throws InterruptedException {
+        DuplicateDetector.FolderFiles folderFiles = duplicateDetector == null ? null : duplicateDetector.newFolderFiles();
+        for (MassUploadedFile muf : files) {
+            if (progress != null && progress.isCancelRequested()) {
+                return;
+            }
+            if (volumeLimit != null) {
+                volumeLimit.acquire();
+            }
+            try {
+                long size = muf.getFile().length();
+                if (duplicateDetector == null || !duplicateDetector.handle(muf, folderFiles, metrics)) {
+                    long start = System.nanoTime();
+                    transferFile(muf);
+                    if (metrics != null && muf.isTransfered()) {
+                        metrics.record(UploadMetrics.Phase.COPY, start, size);
+                    }
+                }
+                if (journal != null) {
+                    if (muf.isTransfered()) {
+                        journal.copied(muf);
+                    } else {
+                        journal.failed(muf);
+                    }
+                }
+                if (progress != null) {
+                    progress.fileDone(size);
+                }
+            } finally {
+                if (volumeLimit != null) {
+                    volumeLimit.release();
+                }
+            }
+        }
+    }
+
+    private void transferFile(MassUploadedFile muf) {
+        Path src = Paths.get(muf.getFile().getAbsolutePath());
+        Path target = Paths.get(muf.getProcessFolder(), muf.getFilename());
+        try {
+            transferFile(src, target, mode, muf.getChecksum(), verifyAlgorithm);
+            muf.setTransfered(true);
+        } catch (IOException e) {
+            muf.setStatus(MassUploadedFileStatus.ERROR);
+            muf.setStatusmessage(FileMessage.COPY_FAILED, target.toString());
+            log.error("Error while copying file during mass upload", e);
+        }
+    }
+
+    /**
+     * Transfer a single file and remove the source. In move mode the file is renamed atomically if possible, otherwise it gets copied and deleted.
+     * If a checksum is given, a copied file is compared with it before the source gets deleted.
+     *
+     * @param src
+     * @param target
+     * @param mode
+     * @param checksum expected checksum of the file, null to skip the verification
+     * @param algorithm algorithm of the checksum, null to skip the verification
+     * @return true if the file was renamed, false if it was copied
+     * @throws IOException if the file could not be copied or the copy is not identical, the source file is kept in this case
+     */
+    public static boolean transferFile(Path src, Path target, TransferMode mode, String checksum, String algorithm) throws IOException {
+        if (mode == TransferMode.MOVE && !ConfigurationHelper.getInstance().useS3()) {
+            try {
+                Files.createDirectories(target.getParent());
+                Files.move(src, target, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (AtomicMoveNotSupportedException e) {
+                log.debug("File {} cannot be moved to {}, it gets copied instead", src, target);
+            }
+        }
+        StorageProvider.getInstance().copyFile(src, target);
+        if (checksum != null && algorithm != null && !algorithm.isEmpty()) {
+            String targetChecksum = FileChecksum.calculate(target, algorithm);
+            if (!checksum.equalsIgnoreCase(targetChecksum)) {
+                // don't leave a broken copy in the process
+                Files.deleteIfExists(target);
+                throw new IOException("Checksum of " + target + " does not match the uploaded file");
+            }
+        }
+        src.toFile().delete(); //NOSONAR
+        return false;
+    }
+
+    /**
+     * Find the storage volume of a folder. If the folder does not exist yet, the next existing parent folder is used.
+     *
+     * @param folder
+     * @return a name identifying the volume
+     */
+    private static String getVolume(Path folder) {
+        Path existing = folder.toAbsolutePath();
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing != null) {
+            try {
+                FileStore store = Files.getFileStore(existing);
+                return store.name();
+            } catch (IOException e) {
+                log.debug("Cannot detect the storage volume of {}", folder);
+            }
+        }
+        Path root = folder.toAbsolutePath().getRoot();
+        return root == null ? "" : root.toString();
+    }
+}
@@ -4,9 +4,14 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.goobi.beans.Step;
@@ -23,7 +28,6 @@ import org.goobi.production.plugin.interfaces.IValidatorPlugin;
 
 import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.HelperSchritte;
-import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.persistence.managers.StepManager;
 
 public class GoobiScriptCopyImages extends AbstractIGoobiScript implements IGoobiScript {
@@ -31,6 +35,18 @@ public class GoobiScriptCopyImages extends AbstractIGoobiScript implements IGoob
 
     private User user;
     private List<MassUploadedFile> uploadedFiles = new ArrayList<>();
+    private TransferMode transferMode = TransferMode.COPY;
+    private String verifyAlgorithm;
+    // skips or flags files that exist already, null to copy all files
+    private DuplicateDetector duplicateDetector;
+    private ProcessCompletionTracker completionTracker = new ProcessCompletionTracker();
+    // create a single job for all files of a process instead of one job per file
+    private boolean jobPerProcess;
+    private InsertJournal journal;
+    private final AtomicInteger remainingJobs = new AtomicInteger();
+    private UploadMetrics metrics = new UploadMetrics();
+    // processes whose step was closed, they get the summary of the batch
+    private final Set<Integer> closedProcesses = ConcurrentHashMap.newKeySet();
 
     public void setUser(User user) {
         this.user = user;
@@ -41,12 +57,74 @@ public class GoobiScriptCopyImages extends AbstractIGoobiScript implements IGoob
 
     }
 
+    public void setTransferMode(TransferMode transferMode) {
+        this.transferMode = transferMode;
+    }
+
+    public void setVerifyAlgorithm(String verifyAlgorithm) {
+        this.verifyAlgorithm = verifyAlgorithm;
+    }
+
+    public void setDuplicateDetector(DuplicateDetector duplicateDetector) {
+        this.duplicateDetector = duplicateDetector;
+    }
+
+    public void setJobPerProcess(boolean jobPerProcess) {
+        this.jobPerProcess = jobPerProcess;
+    }
+
+    /**
+     * Record the progress of the jobs in the journal, it is finished when the last job is done
+     * 
+     * @param journal
+     */
+    public void setJournal(InsertJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Use the metrics of the batch, so that the summary contains the upload and the assignment of the files as well
+     * 
+     * @param metrics
+     */
+    public void setMetrics(UploadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public List<GoobiScriptResult> prepare(List<Integer> processes, String command, Map<String, String> parameters) {
-        List<GoobiScriptResult> newList = new ArrayList<>();
+        List<GoobiScriptResult> newList;
         starttime = (int) System.currentTimeMillis() / 1000;
         LoginBean login = Helper.getLoginBean();
         username = login.getMyBenutzer().getNachVorname();
+        completionTracker = new ProcessCompletionTracker();
+        if (journal != null) {
+            for (MassUploadedFile muf : uploadedFiles) {
+                if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                    journal.planned(muf);
+                }
+            }
+        }
+        if (jobPerProcess) {
+            newList = prepareProcessJobs(command);
+        } else {
+            newList = prepareFileJobs(command);
+        }
+        remainingJobs.set(newList.size());
+        if (newList.isEmpty() && journal != null) {
+            journal.finish();
+        }
+        return newList;
+    }
+
+    /**
+     * Create one job for each file
+     * 
+     * @param command
+     * @return
+     */
+    private List<GoobiScriptResult> prepareFileJobs(String command) {
+        List<GoobiScriptResult> newList = new ArrayList<>();
         int count = 0;
         for (MassUploadedFile muf : uploadedFiles) {
             if (muf.getStatus() == MassUploadedFileStatus.OK) {
@@ -58,6 +136,7 @@ public class GoobiScriptCopyImages extends AbstractIGoobiScript implements IGoob
                 gsr.setCustomGoobiScriptImpl(this);
                 gsr.setProcessTitle(muf.getProcessTitle());
                 newList.add(gsr);
+                completionTracker.register(muf.getProcessId());
             } else {
                 Helper.setFehlerMeldung("File could not be matched and gets skipped: " + muf.getFilename());
             }
@@ -66,71 +145,234 @@ public class GoobiScriptCopyImages extends AbstractIGoobiScript implements IGoob
         return newList;
     }
 
+    /**
+     * Create one job for each process, containing the indexes of all its files
+     * 
+     * @param command
+     * @return
+     */
+    private List<GoobiScriptResult> prepareProcessJobs(String command) {
+        Map<Integer, List<Integer>> filesByProcess = new LinkedHashMap<>();
+        Map<Integer, String> processTitles = new HashMap<>();
+        for (int i = 0; i < uploadedFiles.size(); i++) {
+            MassUploadedFile muf = uploadedFiles.get(i);
+            if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                muf.setTransfered(false);
+                filesByProcess.computeIfAbsent(muf.getProcessId(), k -> new ArrayList<>()).add(i);
+                processTitles.put(muf.getProcessId(), muf.getProcessTitle());
+            } else {
+                Helper.setFehlerMeldung("File could not be matched and gets skipped: " + muf.getFilename());
+            }
+        }
+        List<GoobiScriptResult> newList = new ArrayList<>(filesByProcess.size());
+        for (Map.Entry<Integer, List<Integer>> entry : filesByProcess.entrySet()) {
+            Map<String, String> params = new LinkedHashMap<>();
+            params.put("uploadFileIndexes", entry.getValue().stream().map(String::valueOf).collect(Collectors.joining(",")));
+            params.put("files", Integer.toString(entry.getValue().size()));
+            GoobiScriptResult gsr = new GoobiScriptResult(entry.getKey(), command, params, username, starttime);
+            gsr.setCustomGoobiScriptImpl(this);
+            gsr.setProcessTitle(processTitles.get(entry.getKey()));
+            newList.add(gsr);
+        }
+        return newList;
+    }
+
     @Override
     public void execute(GoobiScriptResult gsr) {
+        try {
+            if (gsr.getParameters().containsKey("uploadFileIndexes")) {
+                executeProcess(gsr);
+            } else {
+                executeFile(gsr);
+            }
+        } finally {
+            if (remainingJobs.decrementAndGet() == 0) {
+                finishBatch();
+            }
+        }
+    }
+
+    /**
+     * Called after the last job, the summary of the batch is written to the log and the journals of the processes
+     */
+    private void finishBatch() {
+        if (journal != null) {
+            journal.finish();
+        }
+        String summary = metrics.finishBatch();
+        logger.info(summary);
+        for (Integer processId : closedProcesses) {
+            Helper.addMessageToProcessJournal(processId, LogType.DEBUG, summary);
+        }
+    }
+
+    private void executeFile(GoobiScriptResult gsr) {
         // execute all jobs that are still in waiting state
         gsr.updateTimestamp();
         Integer uploadFileIndex = Integer.parseInt(gsr.getParameters().get("uploadFileIndex"));
         MassUploadedFile muf = uploadedFiles.get(uploadFileIndex);
-        if (muf.getStatus() == MassUploadedFileStatus.OK) {
-            Path src = Paths.get(muf.getFile().getAbsolutePath());
-            Path target = Paths.get(muf.getProcessFolder(), muf.getFilename());
-            try {
-                StorageProvider.getInstance().copyFile(src, target);
-            } catch (IOException e) {
-                muf.setStatus(MassUploadedFileStatus.ERROR);
-                muf.setStatusmessage("File could not be copied to: " + target.toString());
-                logger.error("Error while copying file during mass upload goobiscript", e);
-                Helper.setFehlerMeldung("Error while copying file during mass upload goobiscript", e);
+        transferFile(muf, null);
+        // the entries run in parallel, only the entry of the last file may validate and close the step, when all images of the process are there
+        boolean fileOk = muf.getStatus() == MassUploadedFileStatus.OK;
+        boolean lastFileOfProcess = fileOk ? completionTracker.fileFinished(muf.getProcessId())
+                : completionTracker.fileFailed(muf.getProcessId(), muf.getFilename());
+
+        if (fileOk) {
+            gsr.setResultMessage("Images copied successfully.");
+            gsr.setResultType(GoobiScriptResultType.OK);
+        } else {
+            gsr.setResultMessage(
+                    muf.getMessage() == FileMessage.DUPLICATE ? muf.getStatusmessage() : "The file does not exist or is not accessible.");
+            gsr.setResultType(GoobiScriptResultType.ERROR);
+        }
+        if (lastFileOfProcess) {
+            finishProcess(gsr, muf);
+        }
+        gsr.updateTimestamp();
+    }
+
+    /**
+     * Validate and close the step after the last file of the process was handled, whatever the status of this file is. If files of the process
+     * failed, the step stays open and the result names the missing files.
+     *
+     * @param gsr result of the last file
+     * @param muf the last file
+     */
+    private void finishProcess(GoobiScriptResult gsr, MassUploadedFile muf) {
+        List<String> failedFiles = completionTracker.getFailedFiles(muf.getProcessId());
+        if (!failedFiles.isEmpty()) {
+            // don't close the step if images are missing
+            gsr.setResultMessage(failedFiles.size() + " images could not be copied, the step of process " + muf.getProcessTitle() + " stays open: "
+                    + String.join(", ", failedFiles));
+            gsr.setResultType(GoobiScriptResultType.ERROR);
+            return;
+        }
+        Step so = StepManager.getStepById(muf.getStepId());
+        if (so.getValidationPlugin() != null && so.getValidationPlugin().length() > 0) {
+            if (!validate(so)) {
+                gsr.setResultMessage("Images copied, but validation not successful.");
+                gsr.setResultType(GoobiScriptResultType.ERROR);
+                return;
             }
-            muf.getFile().delete(); //NOSONAR
-            muf.setTransfered(true);
+            gsr.setResultMessage("Images copied and validated successfully.");
         }
+        Helper.addMessageToProcessJournal(so.getProcessId(), LogType.DEBUG,
+                "Image uploaded and step " + so.getTitel() + " finished using Massupload Plugin via Goobiscript.");
+        closeStep(so);
+    }
 
-        if (muf.getStatus() == MassUploadedFileStatus.OK) {
-            Step so = StepManager.getStepById(muf.getStepId());
-            if (so.getValidationPlugin() != null && so.getValidationPlugin().length() > 0) {
-                IValidatorPlugin ivp = (IValidatorPlugin) PluginLoader.getPluginByTitle(PluginType.Validation, so.getValidationPlugin());
-                ivp.setStep(so);
-                if (!ivp.validate()) {
-                    gsr.setResultMessage("Images copied, but validation not successful.");
-                    gsr.setResultType(GoobiScriptResultType.ERROR);
-                } else {
-                    gsr.setResultMessage("Images copied and validated successfully.");
-                    gsr.setResultType(GoobiScriptResultType.OK);
-                }
-            } else {
-                gsr.setResultMessage("Images copied successfully.");
-                gsr.setResultType(GoobiScriptResultType.OK);
+    /**
+     * Copy all files of a process, then validate and close the step once. Files that could not be copied are listed in the result message.
+     * 
+     * @param gsr
+     */
+    private void executeProcess(GoobiScriptResult gsr) {
+        List<MassUploadedFile> files = new ArrayList<>();
+        for (String index : gsr.getParameters().get("uploadFileIndexes").split(",")) {
+            files.add(uploadedFiles.get(Integer.parseInt(index)));
+        }
+        List<String> failedFiles = new ArrayList<>();
+        // only the files of a process are handled one after another and can be compared with each other
+        DuplicateDetector.FolderFiles folderFiles = duplicateDetector == null ? null : duplicateDetector.newFolderFiles();
+        for (MassUploadedFile muf : files) {
+            transferFile(muf, folderFiles);
+            if (muf.getStatus() != MassUploadedFileStatus.OK) {
+                failedFiles.add(muf.getFilename());
             }
-            gsr.updateTimestamp();
-
-            if (gsr.getResultType() == GoobiScriptResultType.OK && isLastFileOfProcess(muf)) {
-                Helper.addMessageToProcessJournal(so.getProcessId(), LogType.DEBUG,
-                        "Image uploaded and step " + so.getTitel() + " finished using Massupload Plugin via Goobiscript.");
-                HelperSchritte hs = new HelperSchritte();
-                so.setBearbeitungsbenutzer(user);
-                hs.CloseStepObjectAutomatic(so);
+        }
+        gsr.updateTimestamp();
+        if (!failedFiles.isEmpty()) {
+            // don't close the step if images are missing
+            gsr.setResultMessage(failedFiles.size() + " of " + files.size() + " images could not be copied: " + String.join(", ", failedFiles));
+            gsr.setResultType(GoobiScriptResultType.ERROR);
+            return;
+        }
+
+        Step so = StepManager.getStepById(files.get(0).getStepId());
+        if (so.getValidationPlugin() != null && so.getValidationPlugin().length() > 0) {
+            if (!validate(so)) {
+                gsr.setResultMessage(files.size() + " images copied, but validation not successful.");
+                gsr.setResultType(GoobiScriptResultType.ERROR);
+                gsr.updateTimestamp();
+                return;
             }
+            gsr.setResultMessage(files.size() + " images copied and validated successfully.");
         } else {
-            gsr.setResultMessage("The file does not exist or is not accessible.");
-            gsr.setResultType(GoobiScriptResultType.ERROR);
+            gsr.setResultMessage(files.size() + " images copied successfully.");
         }
+        gsr.setResultType(GoobiScriptResultType.OK);
+        Helper.addMessageToProcessJournal(so.getProcessId(), LogType.DEBUG,
+                files.size() + " images uploaded and step " + so.getTitel() + " finished using Massupload Plugin via Goobiscript.");
+        closeStep(so);
+        gsr.updateTimestamp();
     }
 
     /**
-     * Check if there are other MassUploadedFiles in the list which are still not processed
+     * Run the validation plugin of the step
+     * 
+     * @param so
+     * @return true if the validation was successful
+     */
+    private boolean validate(Step so) {
+        long start = System.nanoTime();
+        IValidatorPlugin ivp = (IValidatorPlugin) PluginLoader.getPluginByTitle(PluginType.Validation, so.getValidationPlugin());
+        ivp.setStep(so);
+        boolean valid = ivp.validate();
+        metrics.record(UploadMetrics.Phase.VALIDATION, start, 0);
+        return valid;
+    }
+
+    private void closeStep(Step so) {
+        long start = System.nanoTime();
+        HelperSchritte hs = new HelperSchritte();
+        so.setBearbeitungsbenutzer(user);
+        hs.CloseStepObjectAutomatic(so);
+        metrics.record(UploadMetrics.Phase.CLOSE_STEP, start, 0);
+        closedProcesses.add(so.getProcessId());
+        if (journal != null) {
+            journal.stepClosed(so.getId());
+        }
+    }
+
+    /**
+     * Copy a file into its process folder, the status of the file is set to ERROR if this fails
      * 
      * @param muf
-     * @return
+     * @param folderFiles earlier files of the process, null if the files are not compared with each other
      */
-    private boolean isLastFileOfProcess(MassUploadedFile muf) {
-        for (MassUploadedFile m : uploadedFiles) {
-            if (m.getProcessTitle() != null && m.getProcessTitle().equals(muf.getProcessTitle()) && !m.isTransfered()) {
-                return false;
+    private void transferFile(MassUploadedFile muf, DuplicateDetector.FolderFiles folderFiles) {
+        if (duplicateDetector != null && muf.getStatus() == MassUploadedFileStatus.OK && duplicateDetector.handle(muf, folderFiles, metrics)) {
+            if (journal != null) {
+                if (muf.isTransfered()) {
+                    journal.copied(muf);
+                } else {
+                    journal.failed(muf);
+                }
             }
+            return;
+        }
+        if (muf.getStatus() == MassUploadedFileStatus.OK) {
+            Path src = Paths.get(muf.getFile().getAbsolutePath());
+            Path target = Paths.get(muf.getProcessFolder(), muf.getFilename());
+            long start = System.nanoTime();
+            long size = src.toFile().length();
+            try {
+                FileTransferEngine.transferFile(src, target, transferMode, muf.getChecksum(), verifyAlgorithm);
+                metrics.record(UploadMetrics.Phase.COPY, start, size);
+                if (journal != null) {
+                    journal.copied(muf);
+                }
+            } catch (IOException e) {
+                muf.setStatus(MassUploadedFileStatus.ERROR);
+                muf.setStatusmessage(FileMessage.COPY_FAILED, target.toString());
+                logger.error("Error while copying file during mass upload goobiscript", e);
+                Helper.setFehlerMeldung("Error while copying file during mass upload goobiscript", e);
+                if (journal != null) {
+                    journal.failed(muf);
+                }
+            }
+            muf.setTransfered(true);
         }
-        return true;
     }
 
     @Override
@@ -0,0 +1,516 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.User;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.persistence.managers.UserManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Application wide service that inserts the files of configured hot folders without the user interface. The folders are scanned regularly. A file
+ * is taken as soon as its size and modification date did not change for the configured time and all other files of its process are unchanged as
+ * well, in barcode mode the whole folder must be unchanged. The files are matched, copied and the steps are closed in the same way as in the plugin,
+ * the work runs as a job of the shared scheduler.
+ *
+ * If an insert window is configured, the folders are only observed outside of it, so that copying and closing happens at off-peak hours. Files that
+ * cannot be matched stay in the folder and are tried again after they were changed or an hour later.
+ *
+ * Workflow plugins have no startup hook, so the service is started by the first instance of the plugin after the start of the application server,
+ * i.e. when a user opens the plugin once. Later instances only apply the configuration again if it was changed.
+ */
+@Log4j2
+public final class HotFolderIngestService {
+
+    private static final long RETRY_REJECTED_MILLIS = 60 * 60 * 1000L;
+
+    private static HotFolderIngestService instance;
+    // the configuration that was applied last, to skip unchanged configurations
+    private static String appliedConfiguration;
+    private static MassUploadScheduler appliedScheduler;
+
+    private final MassUploadScheduler scheduler;
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> scan;
+    private long scanInterval;
+    private volatile Settings settings;
+    private final Map<String, FolderState> folderStates = new ConcurrentHashMap<>();
+
+    /**
+     * A configured hot folder
+     */
+    private static class HotFolder {
+        private final String folder;
+        private final String login;
+        private final boolean barcodeMode;
+
+        private HotFolder(String folder, String login, boolean barcodeMode) {
+            this.folder = folder;
+            this.login = login;
+            this.barcodeMode = barcodeMode;
+        }
+    }
+
+    /**
+     * Configuration of the service, it is replaced as a whole when the plugin configuration gets read again
+     */
+    private static class Settings {
+        private final List<HotFolder> folders = new ArrayList<>();
+        private long stableMillis;
+        private LocalTime windowStart;
+        private LocalTime windowEnd;
+        private String userFolderName;
+        private String filenamePart;
+        private String filenameSeparator;
+        private ProcessMatcher matcher;
+        private BarcodeReader barcodeReader;
+        private int barcodeThreads;
+        private int copyThreads;
+        private int copyThreadsPerVolume;
+        private int closeThreads;
+        private TransferMode transferMode;
+        private String verifyAlgorithm;
+        private DuplicateDetector duplicateDetector;
+        private String journalFolder;
+
+        private boolean isInWindow(LocalTime now) {
+            if (windowStart == null || windowEnd == null) {
+                return true;
+            }
+            if (windowStart.isBefore(windowEnd)) {
+                return !now.isBefore(windowStart) && now.isBefore(windowEnd);
+            }
+            // the window spans midnight
+            return !now.isBefore(windowStart) || now.isBefore(windowEnd);
+        }
+    }
+
+    /**
+     * Size and modification date of a file at a scan
+     */
+    private static class Fingerprint {
+        private final long size;
+        private final long lastModified;
+        private final long seen;
+
+        private Fingerprint(long size, long lastModified, long seen) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.seen = seen;
+        }
+
+        private boolean sameFile(Fingerprint other) {
+            return other != null && size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    /**
+     * What is known about a folder from the previous scans
+     */
+    private static class FolderState {
+        private Map<String, Fingerprint> files = new HashMap<>();
+        private final Map<String, Fingerprint> rejected = new ConcurrentHashMap<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        private boolean isRejected(String filename, Fingerprint current, long now) {
+            Fingerprint reject = rejected.get(filename);
+            if (reject == null) {
+                return false;
+            }
+            if (!reject.sameFile(current) || now - reject.seen > RETRY_REJECTED_MILLIS) {
+                rejected.remove(filename);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private HotFolderIngestService(MassUploadScheduler scheduler) {
+        this.scheduler = scheduler;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "massupload-hotfolder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start the service or apply a changed configuration. Without configured hot folders the service does nothing.
+     *
+     * @param config the plugin configuration
+     * @param scheduler scheduler that runs the inserts
+     */
+    public static synchronized void configure(XMLConfiguration config, MassUploadScheduler scheduler) {
+        String configuration = describe(config);
+        if (configuration.equals(appliedConfiguration) && scheduler == appliedScheduler) {
+            return;
+        }
+        appliedConfiguration = configuration;
+        appliedScheduler = scheduler;
+        Settings settings = readSettings(config, scheduler);
+        if (instance == null) {
+            if (settings.folders.isEmpty()) {
+                return;
+            }
+            instance = new HotFolderIngestService(scheduler);
+        }
+        instance.settings = settings;
+        instance.schedule(settings.folders.isEmpty() ? 0 : Math.max(1, config.getLong("hot-folder-scan-interval", 60)));
+    }
+
+    /**
+     * Stop the scans, called when the scheduler is stopped. Running inserts are cancelled by the scheduler.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.timer.shutdownNow();
+            instance = null;
+        }
+        appliedConfiguration = null;
+        appliedScheduler = null;
+    }
+
+    /**
+     * Get all values of the configuration as text. The service uses many of the general settings, so any change counts.
+     *
+     * @param config
+     * @return
+     */
+    private static String describe(XMLConfiguration config) {
+        StringBuilder answer = new StringBuilder();
+        Iterator<String> keys = config.getKeys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            answer.append(key).append('=').append(config.getList(key)).append('\n');
+        }
+        return answer.toString();
+    }
+
+    private static Settings readSettings(XMLConfiguration config, MassUploadScheduler scheduler) {
+        Settings settings = new Settings();
+        String defaultDetection = config.getString("detection-type", "filename");
+        int count = config.getMaxIndex("hot-folder") + 1;
+        for (int i = 0; i < count; i++) {
+            String key = "hot-folder(" + i + ")";
+            String login = config.getString(key + "[@user]", "");
+            if (login.isEmpty()) {
+                log.error("Mass upload hot folder without user is ignored: " + config.getString(key, ""));
+                continue;
+            }
+            settings.folders.add(new HotFolder(config.getString(key, "").trim(), login,
+                    "barcode".equalsIgnoreCase(config.getString(key + "[@detection-type]", defaultDetection))));
+        }
+        settings.stableMillis = config.getLong("hot-folder-stable-time", 300) * 1000;
+        settings.windowStart = readTime(config.getString("hot-folder-window[@start]", null));
+        settings.windowEnd = readTime(config.getString("hot-folder-window[@end]", null));
+        settings.userFolderName = config.getString("user-folder-name", "mass_upload").toLowerCase();
+        settings.filenamePart = config.getString("filename-part", "prefix").toLowerCase();
+        settings.filenameSeparator = config.getString("filename-separator", "_").toLowerCase();
+        if (!settings.folders.isEmpty()) {
+            settings.matcher = ProcessMatcher.fromConfiguration(config, scheduler);
+            settings.barcodeReader = BarcodeReader.fromConfiguration(config);
+        }
+        settings.barcodeThreads = config.getInt("barcode-threads", Runtime.getRuntime().availableProcessors());
+        settings.copyThreads = config.getInt("copy-threads", 4);
+        settings.copyThreadsPerVolume = config.getInt("copy-threads-per-volume", 0);
+        settings.closeThreads = config.getInt("close-threads", 4);
+        settings.transferMode = "move".equalsIgnoreCase(config.getString("transfer-mode", "copy")) ? TransferMode.MOVE : TransferMode.COPY;
+        settings.verifyAlgorithm = config.getBoolean("verify-checksum", false) ? config.getString("checksum-algorithm", "SHA-256") : null;
+        settings.duplicateDetector = DuplicateDetector.fromConfiguration(config);
+        settings.journalFolder = config.getString("journal-folder",
+                Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "massupload_journal").toString());
+        return settings;
+    }
+
+    private static LocalTime readTime(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalTime.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            log.error("Invalid time for the mass upload hot folder window: " + value);
+            return null;
+        }
+    }
+
+    private synchronized void schedule(long intervalSeconds) {
+        if (scan != null && intervalSeconds == scanInterval) {
+            return;
+        }
+        if (scan != null) {
+            scan.cancel(false);
+            scan = null;
+        }
+        scanInterval = intervalSeconds;
+        if (intervalSeconds > 0) {
+            scan = timer.scheduleWithFixedDelay(this::scanAll, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void scanAll() {
+        Settings current = settings;
+        boolean insert = current.isInWindow(LocalTime.now());
+        for (HotFolder hotFolder : current.folders) {
+            try {
+                scanFolder(hotFolder, current, insert);
+            } catch (RuntimeException e) {
+                // a failure must not stop the scans of the next runs
+                log.error("Error while scanning the mass upload hot folder of " + hotFolder.login, e);
+            }
+        }
+    }
+
+    private void scanFolder(HotFolder hotFolder, Settings current, boolean insert) {
+        User user;
+        try {
+            user = UserManager.getUserByLogin(hotFolder.login);
+        } catch (DAOException e) {
+            log.error("User of the mass upload hot folder could not be loaded: " + hotFolder.login, e);
+            return;
+        }
+        if (user == null) {
+            log.error("User of the mass upload hot folder does not exist: " + hotFolder.login);
+            return;
+        }
+        File folder = hotFolder.folder.isEmpty() ? new File(user.getHomeDir(), current.userFolderName) : new File(hotFolder.folder);
+        if (!folder.isDirectory() || !folder.canRead()) {
+            log.debug("Mass upload hot folder {} does not exist or is not readable", folder);
+            return;
+        }
+        FolderState state = folderStates.computeIfAbsent(folder.getAbsolutePath(), k -> new FolderState());
+        if (state.running.get()) {
+            // the files are inserted right now, they are looked at again in the next scan
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, Fingerprint> files = new HashMap<>();
+        List<String> stableFiles = new ArrayList<>();
+        List<String> unstableFiles = new ArrayList<>();
+        boolean folderStable = true;
+        boolean allRejected = true;
+        try (DirectoryStream<Path> folderContent = Files.newDirectoryStream(folder.toPath())) {
+            for (Path file : folderContent) {
+                String filename = file.getFileName().toString();
+                // hidden files are usually still being written
+                if (filename.startsWith(".")) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    continue;
+                }
+                Fingerprint fingerprint = new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+                files.put(filename, fingerprint);
+                boolean stable = fingerprint.sameFile(state.files.get(filename)) && now - fingerprint.lastModified >= current.stableMillis;
+                if (!stable) {
+                    folderStable = false;
+                    unstableFiles.add(filename);
+                } else if (!state.isRejected(filename, fingerprint, now)) {
+                    allRejected = false;
+                    stableFiles.add(filename);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Mass upload hot folder could not be read: " + folder, e);
+            return;
+        }
+        state.files = files;
+
+        if (!insert || stableFiles.isEmpty()) {
+            return;
+        }
+        List<String> batchFiles;
+        List<String> pendingFiles;
+        if (hotFolder.barcodeMode) {
+            // the barcodes are passed on to the following pages, so all pages are needed
+            if (!folderStable || allRejected) {
+                return;
+            }
+            batchFiles = new ArrayList<>(files.keySet());
+            pendingFiles = new ArrayList<>();
+        } else {
+            batchFiles = stableFiles;
+            pendingFiles = unstableFiles;
+        }
+        if (state.running.compareAndSet(false, true)) {
+            scheduler.submitJob(() -> {
+                try {
+                    ingest(hotFolder, user, folder, batchFiles, pendingFiles, files, state, current);
+                } catch (RuntimeException e) {
+                    log.error("Error while inserting the files of the mass upload hot folder " + folder, e);
+                } finally {
+                    state.running.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Match, copy and close the steps for the files of a hot folder. Files of a process that still has files being written are left for a later
+     * scan, so that its step is only closed with all files.
+     *
+     * @param filenames the stable files to insert
+     * @param pendingFilenames files that are still being written, they are only matched
+     */
+    private void ingest(HotFolder hotFolder, User user, File folder, List<String> filenames, List<String> pendingFilenames,
+            Map<String, Fingerprint> fingerprints, FolderState state, Settings current) {
+        String key = "hotfolder-" + hotFolder.login;
+        UploadBatch batch = new UploadBatch();
+        UploadMetrics metrics = new UploadMetrics();
+        List<MassUploadedFile> files = createFiles(batch, folder, filenames, fingerprints);
+        List<MassUploadedFile> pending = createFiles(batch, folder, pendingFilenames, fingerprints);
+
+        try {
+            if (hotFolder.barcodeMode) {
+                BarcodeDecodingQueue barcodeQueue = new BarcodeDecodingQueue(scheduler, key + "/barcode", current.barcodeThreads, files.size(),
+                        file -> {
+                            long start = System.nanoTime();
+                            try {
+                                return current.barcodeReader.readBarcode(file);
+                            } finally {
+                                metrics.record(UploadMetrics.Phase.BARCODE, start, file.length());
+                            }
+                        });
+                barcodeQueue.submitAll(files);
+                barcodeQueue.awaitAll();
+                current.matcher.assign(files, ProcessMatcher.getBarcodeIdentifiers(files), batch, metrics);
+            } else {
+                List<MassUploadedFile> allFiles = new ArrayList<>(files);
+                allFiles.addAll(pending);
+                List<String> identifiers = new ArrayList<>(allFiles.size());
+                for (MassUploadedFile muf : allFiles) {
+                    identifiers.add(IdentifierExtractor.extract(muf.getFilename(), current.filenamePart, current.filenameSeparator));
+                }
+                current.matcher.assign(allFiles, identifiers, batch, metrics);
+                files = withoutPendingProcesses(files, pending);
+            }
+
+            List<MassUploadedFile> filesToCopy = new ArrayList<>();
+            for (MassUploadedFile muf : files) {
+                if (muf.getStatus() == MassUploadedFileStatus.OK) {
+                    filesToCopy.add(muf);
+                } else {
+                    log.warn("File of the mass upload hot folder could not be matched and gets skipped: " + muf.getFilename() + " "
+                            + muf.getStatusmessage());
+                }
+            }
+            InsertJournal journal = null;
+            if (!filesToCopy.isEmpty()) {
+                try {
+                    journal = InsertJournal.create(Paths.get(current.journalFolder), hotFolder.login);
+                    for (MassUploadedFile muf : filesToCopy) {
+                        journal.planned(muf);
+                    }
+                } catch (IOException e) {
+                    log.error("Mass upload journal could not be created in " + current.journalFolder, e);
+                }
+                new FileTransferEngine(scheduler, key + "/copy", current.copyThreads, current.copyThreadsPerVolume, current.transferMode,
+                        current.verifyAlgorithm, current.duplicateDetector).transfer(filesToCopy, null, journal, metrics);
+            }
+
+            // only close the steps of processes whose files were all copied
+            Set<Integer> steps = new HashSet<>();
+            for (MassUploadedFile muf : filesToCopy) {
+                steps.add(muf.getStepId());
+            }
+            for (MassUploadedFile muf : files) {
+                if (muf.getStatus() != MassUploadedFileStatus.OK || !muf.isTransfered()) {
+                    steps.remove(muf.getStepId());
+                    // remember the file, so that it is not matched again in each scan
+                    state.rejected.put(muf.getFilename(), fingerprints.get(muf.getFilename()));
+                }
+            }
+            StepCloser.Result result = new StepCloser(scheduler, key + "/close", current.closeThreads).close(steps, user, journal, metrics);
+            for (String message : result.getFailures().values()) {
+                log.error(message);
+            }
+            if (journal != null) {
+                journal.finish();
+            }
+            writeSummary(metrics, result.getFinishedProcesses());
+            log.info("Mass upload hot folder {}: {} files inserted, {} steps closed", folder, filesToCopy.size(), result.getFinishedProcesses().size());
+        } catch (InterruptedException e) {
+            log.error("Inserting the files of the mass upload hot folder was interrupted: " + folder, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<MassUploadedFile> createFiles(UploadBatch batch, File folder, List<String> filenames, Map<String, Fingerprint> fingerprints) {
+        List<MassUploadedFile> files = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            Fingerprint fingerprint = fingerprints.get(filename);
+            MassUploadedFile muf = batch.createFile(folder, filename);
+            muf.setFileSize(fingerprint.size);
+            muf.setLastModified(fingerprint.lastModified);
+            files.add(muf);
+        }
+        files.sort(Comparator.comparing(MassUploadedFile::getFilename));
+        return files;
+    }
+
+    /**
+     * Remove the files of all processes that have files which are still being written, otherwise the step would be closed without them
+     *
+     * @param files matched stable files
+     * @param pending matched files that are still being written
+     * @return the files that can be inserted now
+     */
+    private static List<MassUploadedFile> withoutPendingProcesses(List<MassUploadedFile> files, List<MassUploadedFile> pending) {
+        Set<Integer> waitingProcesses = new HashSet<>();
+        for (MassUploadedFile muf : pending) {
+            if (muf.getProcessId() != 0) {
+                waitingProcesses.add(muf.getProcessId());
+            }
+        }
+        List<MassUploadedFile> ready = new ArrayList<>(files.size());
+        for (MassUploadedFile muf : files) {
+            if (muf.getProcessId() != 0 && waitingProcesses.contains(muf.getProcessId())) {
+                log.debug("File {} waits for the other files of process {}", muf.getFilename(), muf.getProcessTitle());
+            } else {
+                ready.add(muf);
+            }
+        }
+        return ready;
+    }
+
+    private static void writeSummary(UploadMetrics metrics, List<MassUploadedProcess> processes) {
+        String summary = metrics.finishBatch();
+        log.info(summary);
+        try {
+            for (MassUploadedProcess mup : processes) {
+                Helper.addMessageToProcessJournal(mup.getProcessId(), LogType.DEBUG, summary);
+            }
+        } catch (RuntimeException e) {
+            log.error("Summary of the mass upload could not be written to the process journal", e);
+        }
+    }
+}
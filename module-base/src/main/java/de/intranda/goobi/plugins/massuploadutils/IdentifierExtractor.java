@@ -0,0 +1,36 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+/**
+ * Gets the part of a file name that identifies the process
+ */
+public final class IdentifierExtractor {
+
+    private IdentifierExtractor() {
+    }
+
+    /**
+     * Get the relevant part of the file name. The extension is removed first, then the part before the last separator is used for 'prefix' and the
+     * part after the last separator for 'suffix'. Any other value uses the complete name.
+     *
+     * @param filename
+     * @param filenamePart prefix, suffix or complete
+     * @param filenameSeparator
+     * @return
+     */
+    public static String extract(String filename, String filenamePart, String filenameSeparator) {
+        int dot = filename.lastIndexOf('.');
+        String identifier = dot >= 0 ? filename.substring(0, dot) : filename;
+        if ("prefix".equals(filenamePart)) {
+            int separator = identifier.lastIndexOf(filenameSeparator);
+            if (separator >= 0) {
+                identifier = identifier.substring(0, separator);
+            }
+        } else if ("suffix".equals(filenamePart)) {
+            int separator = identifier.lastIndexOf(filenameSeparator);
+            if (separator >= 0) {
+                identifier = identifier.substring(separator + 1);
+            }
+        }
+        return identifier;
+    }
+}
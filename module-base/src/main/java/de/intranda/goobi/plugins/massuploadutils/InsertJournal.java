@@ -0,0 +1,316 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Append only record of a mass upload batch. Each planned file, each finished transfer and each closed step is written as a single line, so the
+ * state of an interrupted batch can be read again after a restart and the batch can be continued.
+ *
+ * The lines are flushed after each record, they survive a restart of the application server. A journal ends with a DONE record and gets deleted then.
+ */
+@Log4j2
+public class InsertJournal implements AutoCloseable {
+
+    private static final String SUFFIX = ".journal";
+    private static final String HEADER = "# massupload journal 1";
+    private static final String TIMESTAMP_FORMAT = "yyyyMMdd-HHmmssSSS";
+    // the part of the file name after the login, logins may contain hyphens and digits as well
+    private static final Pattern NAME_AFTER_LOGIN = Pattern.compile("-\\d{8}-\\d{9}" + Pattern.quote(SUFFIX));
+
+    private static final String PLANNED = "PLANNED";
+    private static final String COPIED = "COPIED";
+    private static final String FAILED = "FAILED";
+    private static final String CLOSED = "CLOSED";
+    private static final String DONE = "DONE";
+
+    // journals that are written right now, they must not be resumed
+    private static final Set<Path> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    private final Path file;
+    private final Writer writer;
+    private final Set<String> plannedFiles = new HashSet<>();
+
+    /**
+     * A file of the batch as it was read from the journal
+     */
+    @Getter
+    public static class Entry {
+        private final String source;
+        private final String target;
+        private final int processId;
+        private final String processTitle;
+        private final int stepId;
+        private final String checksum;
+        private boolean copied;
+        private String error;
+
+        private Entry(String source, String target, int processId, String processTitle, int stepId, String checksum) {
+            this.source = source;
+            this.target = target;
+            this.processId = processId;
+            this.processTitle = processTitle;
+            this.stepId = stepId;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Content of a journal
+     */
+    @Getter
+    public static class State {
+        private final Path file;
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+        private final Set<Integer> closedSteps = new HashSet<>();
+        private boolean done;
+
+        private State(Path file) {
+            this.file = file;
+        }
+
+        public int getCopiedFiles() {
+            return (int) entries.values().stream().filter(Entry::isCopied).count();
+        }
+
+        public String getName() {
+            return file.getFileName().toString();
+        }
+    }
+
+    private InsertJournal(Path file, Collection<String> plannedSources) throws IOException {
+        this.file = file;
+        this.plannedFiles.addAll(plannedSources);
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        ACTIVE.add(file);
+    }
+
+    /**
+     * Start a new journal for a batch of the user
+     *
+     * @param folder
+     * @param login
+     * @return
+     * @throws IOException
+     */
+    public static InsertJournal create(Path folder, String login) throws IOException {
+        Files.createDirectories(folder);
+        String name = login + "-" + new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date()) + SUFFIX;
+        InsertJournal journal = new InsertJournal(folder.resolve(name), Collections.emptyList());
+        journal.append(HEADER);
+        return journal;
+    }
+
+    /**
+     * Continue writing an existing journal
+     *
+     * @param state
+     * @return
+     * @throws IOException
+     */
+    public static InsertJournal open(State state) throws IOException {
+        return new InsertJournal(state.getFile(), state.getEntries().keySet());
+    }
+
+    /**
+     * Find all journals of the user that were not finished and are not in use
+     *
+     * @param folder
+     * @param login
+     * @return
+     */
+    public static List<Path> findInterrupted(Path folder, String login) {
+        List<Path> answer = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return answer;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            for (Path p : files) {
+                // only the timestamp may follow the login, otherwise it is the journal of a user whose login starts with this login and a hyphen
+                String name = p.getFileName().toString();
+                if (name.startsWith(login) && NAME_AFTER_LOGIN.matcher(name.substring(login.length())).matches() && !ACTIVE.contains(p)) {
+                    answer.add(p);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Mass upload journals could not be listed in " + folder, e);
+        }
+        Collections.sort(answer);
+        return answer;
+    }
+
+    /**
+     * Read a journal, incomplete lines at the end are ignored
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static State read(Path file) throws IOException {
+        State state = new State(file);
+        String[] lines = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n", -1);
+        try {
+            // the last element is empty or a line that was not written completely
+            for (int i = 0; i < lines.length - 1; i++) {
+                String[] fields = lines[i].split("\t", -1);
+                Entry entry;
+                switch (fields[0]) {
+                    case PLANNED:
+                        if (fields.length == 7) {
+                            state.entries.put(unescape(fields[1]), new Entry(unescape(fields[1]), unescape(fields[2]), Integer.parseInt(fields[3]),
+                                    unescape(fields[4]), Integer.parseInt(fields[5]), fields[6].isEmpty() ? null : fields[6]));
+                        }
+                        break;
+                    case COPIED:
+                        entry = fields.length > 1 ? state.entries.get(unescape(fields[1])) : null;
+                        if (entry != null) {
+                            entry.copied = true;
+                            entry.error = null;
+                        }
+                        break;
+                    case FAILED:
+                        entry = fields.length > 2 ? state.entries.get(unescape(fields[1])) : null;
+                        if (entry != null) {
+                            entry.error = unescape(fields[2]);
+                        }
+                        break;
+                    case CLOSED:
+                        if (fields.length > 1) {
+                            state.closedSteps.add(Integer.parseInt(fields[1]));
+                        }
+                        break;
+                    case DONE:
+                        state.done = true;
+                        break;
+                    default:
+                        // header
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Mass upload journal is damaged: " + file, e);
+        }
+        return state;
+    }
+
+    /**
+     * Record a file that is going to be copied, files that are already part of the journal are ignored
+     *
+     * @param muf
+     */
+    public synchronized void planned(MassUploadedFile muf) {
+        String source = muf.getFile().getAbsolutePath();
+        if (plannedFiles.add(source)) {
+            append(PLANNED + "\t" + escape(source) + "\t" + escape(Paths.get(muf.getProcessFolder(), muf.getFilename()).toString()) + "\t"
+                    + muf.getProcessId() + "\t" + escape(muf.getProcessTitle()) + "\t" + muf.getStepId() + "\t" + (muf.getChecksum() == null ? "" : muf.getChecksum()));
+        }
+    }
+
+    public synchronized void copied(MassUploadedFile muf) {
+        append(COPIED + "\t" + escape(muf.getFile().getAbsolutePath()));
+    }
+
+    public synchronized void failed(MassUploadedFile muf) {
+        append(FAILED + "\t" + escape(muf.getFile().getAbsolutePath()) + "\t" + escape(muf.getStatusmessage()));
+    }
+
+    public synchronized void stepClosed(int stepId) {
+        append(CLOSED + "\t" + stepId);
+    }
+
+    /**
+     * Mark the batch as complete and remove the journal
+     */
+    public synchronized void finish() {
+        append(DONE);
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.error("Mass upload journal could not be deleted: " + file, e);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("Mass upload journal could not be closed: " + file, e);
+        }
+        ACTIVE.remove(file);
+    }
+
+    /**
+     * Remove an interrupted journal that shall not be continued
+     *
+     * @param file
+     */
+    public static void discard(Path file) {
+        if (ACTIVE.contains(file)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.error("Mass upload journal could not be deleted: " + file, e);
+        }
+    }
+
+    private void append(String line) {
+        try {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            // the batch itself can continue, but it cannot be resumed
+            log.error("Mass upload journal could not be written: " + file, e);
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
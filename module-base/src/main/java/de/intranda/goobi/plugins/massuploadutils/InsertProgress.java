@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a running insert. It is updated by the background job and read by the user interface, so all values can be read without locking.
+ */
+public class InsertProgress {
+
+    public enum Phase {
+        COPYING,
+        CLOSING,
+        FINISHED,
+        CANCELLED
+    }
+
+    private final int totalFiles;
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicInteger doneFiles = new AtomicInteger();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicBoolean reported = new AtomicBoolean();
+    private volatile long totalBytes;
+    private volatile long endTime;
+    private volatile Phase phase = Phase.COPYING;
+    private volatile boolean cancelRequested;
+
+    public InsertProgress(int totalFiles) {
+        this.totalFiles = totalFiles;
+    }
+
+    /**
+     * Register a transferred file
+     *
+     * @param bytes size of the file
+     */
+    public void fileDone(long bytes) {
+        doneFiles.incrementAndGet();
+        doneBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Ask the job to stop. Files that are currently copied are finished first.
+     */
+    public void cancel() {
+        cancelRequested = true;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    public void addError(String message) {
+        errors.add(message);
+    }
+
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+        if (phase == Phase.FINISHED || phase == Phase.CANCELLED) {
+            endTime = System.currentTimeMillis();
+        }
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public boolean isRunning() {
+        return phase == Phase.COPYING || phase == Phase.CLOSING;
+    }
+
+    /**
+     * Remember that the result of the finished job was shown to the user
+     *
+     * @return true on the first call after the job finished
+     */
+    public boolean markReported() {
+        return !isRunning() && reported.compareAndSet(false, true);
+    }
+
+    public boolean isReported() {
+        return reported.get();
+    }
+
+    public int getTotalFiles() {
+        return totalFiles;
+    }
+
+    public int getDoneFiles() {
+        return doneFiles.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getDoneBytes() {
+        return doneBytes.get();
+    }
+
+    /**
+     * @return finished files in percent
+     */
+    public int getPercent() {
+        return totalFiles == 0 ? 100 : (int) (100L * doneFiles.get() / totalFiles);
+    }
+
+    /**
+     * @return transferred bytes per second
+     */
+    public long getThroughput() {
+        long duration = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+        return duration <= 0 ? 0 : doneBytes.get() * 1000 / duration;
+    }
+
+    /**
+     * Estimate the remaining time of the copy phase, based on the bytes transferred so far
+     *
+     * @return remaining seconds or -1, if no estimation is possible yet
+     */
+    public long getEtaSeconds() {
+        long throughput = getThroughput();
+        if (phase != Phase.COPYING || throughput == 0 || totalBytes == 0) {
+            return -1;
+        }
+        return Math.max(0, (totalBytes - doneBytes.get()) / throughput);
+    }
+
+    public String getThroughputText() {
+        return String.format(Locale.ROOT, "%.1f MB/s", getThroughput() / (1024d * 1024d));
+    }
+
+    public String getDoneBytesText() {
+        return String.format(Locale.ROOT, "%.1f / %.1f GB", doneBytes.get() / (1024d * 1024d * 1024d), totalBytes / (1024d * 1024d * 1024d));
+    }
+
+    public String getEtaText() {
+        long eta = getEtaSeconds();
+        if (eta < 0) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "%d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60);
+    }
+}
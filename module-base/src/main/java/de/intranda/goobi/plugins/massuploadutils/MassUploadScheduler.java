@@ -0,0 +1,453 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Application wide scheduler for the work of all mass uploads. There are two bounded pools:
+ * <ul>
+ * <li>the workers run the short tasks like decoding a barcode, copying the files of a process or closing a step</li>
+ * <li>the jobs coordinate a batch, e.g. an insert or a barcode assignment. They only wait for worker tasks and never run them.</li>
+ * </ul>
+ *
+ * The worker tasks are queued per key, usually the login of the user and the kind of work. Free workers take the next task from the keys in turn,
+ * so several users make progress at the same time even if one of them has queued thousands of images. A key can limit the number of its tasks
+ * running in parallel.
+ *
+ * All threads are daemon threads and end after a minute without work. The pools are stopped when the application shuts down. The scheduler is
+ * registered in JMX as {@value #OBJECT_NAME}, so that a plugin loaded again without a restart of the application can stop the scheduler of the
+ * previous version, including its shutdown hook and the hot folder service.
+ *
+ * In the virtual thread mode, work that mostly waits for the database or the storage (copying, closing steps, process searches) runs in virtual
+ * threads instead of the workers. Its concurrency is limited by semaphores for the database connections and for each storage volume. The CPU bound
+ * barcode detection stays on the workers. The mode needs Java 21, on older versions the workers are used.
+ */
+@Log4j2
+public final class MassUploadScheduler implements MassUploadSchedulerMXBean {
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=MassUpload,name=Scheduler";
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static MassUploadScheduler instance;
+    private static Thread shutdownHook;
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor jobs;
+    private volatile ExecutorService virtualThreads;
+    private volatile Semaphore databasePermits;
+    private final Map<String, Semaphore> volumePermits = new ConcurrentHashMap<>();
+    private int databaseConnectionLimit;
+
+    // queued tasks per key and the keys that may start a task right now, in the order they get their turn
+    private final Map<String, Deque<FutureTask<?>>> queues = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Integer> limits = new HashMap<>();
+    private final Deque<String> turns = new ArrayDeque<>();
+    private final Set<String> waitingForTurn = new HashSet<>();
+
+    /**
+     * Get the scheduler of the application. It is created on the first call, later calls adjust the pool sizes if the configuration changed.
+     *
+     * @param workerThreads number of worker tasks running in parallel for all users
+     * @param jobThreads number of batches running in parallel for all users, further batches wait
+     * @param useVirtualThreads run the waiting work in virtual threads, if the Java version supports them
+     * @param databaseConnections number of database connections the virtual threads may use at the same time
+     * @return
+     */
+    public static synchronized MassUploadScheduler getInstance(int workerThreads, int jobThreads, boolean useVirtualThreads,
+            int databaseConnections) {
+        if (instance == null) {
+            instance = new MassUploadScheduler(Math.max(1, workerThreads), Math.max(1, jobThreads));
+            instance.register();
+            shutdownHook = new Thread(MassUploadScheduler::shutdownInstance, "massupload-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            resize(instance.workers, Math.max(1, workerThreads));
+            resize(instance.jobs, Math.max(1, jobThreads));
+        }
+        instance.configureVirtualThreads(useVirtualThreads, Math.max(1, databaseConnections));
+        return instance;
+    }
+
+    private MassUploadScheduler(int workerThreads, int jobThreads) {
+        workers = createPool(workerThreads, "massupload-worker-");
+        jobs = createPool(jobThreads, "massupload-job-");
+    }
+
+    private static ThreadPoolExecutor createPool(int threads, String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private synchronized void configureVirtualThreads(boolean useVirtualThreads, int databaseConnections) {
+        if (useVirtualThreads && virtualThreads == null) {
+            virtualThreads = createVirtualThreadExecutor();
+        } else if (!useVirtualThreads && virtualThreads != null) {
+            // running tasks are finished
+            virtualThreads.shutdown();
+            virtualThreads = null;
+        }
+        Semaphore permits = databasePermits;
+        if (permits == null || databaseConnections != databaseConnectionLimit) {
+            // tasks holding a permit of the old semaphore release it there
+            databasePermits = new Semaphore(databaseConnections, true);
+            databaseConnectionLimit = databaseConnections;
+        }
+    }
+
+    /**
+     * Create an executor with a new virtual thread for each task. The method is called via reflection, as the plugin is compiled for Java 17.
+     *
+     * @return the executor or null, if virtual threads are not available
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Virtual threads are not available in Java {}, the mass upload uses platform threads", System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else if (threads < pool.getMaximumPoolSize()) {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Register the scheduler in JMX. A scheduler registered by a previous version of the plugin is stopped first, its class loader can only be
+     * reached via JMX.
+     */
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                log.info("Stopping the mass upload scheduler of a previously loaded plugin");
+                server.invoke(name, "shutdown", null, null);
+                // the previous scheduler removes itself, unless it is older than this mechanism
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("Mass upload scheduler could not be registered in JMX", e);
+        }
+    }
+
+    private static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Forget the scheduler after it was stopped, so that nothing keeps the class loader of the plugin
+     *
+     * @param scheduler the stopped scheduler
+     */
+    private static synchronized void release(MassUploadScheduler scheduler) {
+        if (instance != scheduler) {
+            return;
+        }
+        instance = null;
+        HotFolderIngestService.stop();
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the application shuts down already
+            }
+        }
+        shutdownHook = null;
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException e) {
+            log.warn("Mass upload scheduler could not be removed from JMX", e);
+        }
+    }
+
+    /**
+     * Queue a worker task
+     *
+     * @param key queue of the task, the queues take turns
+     * @param parallelism maximum number of tasks of this key running at the same time, 0 for no limit
+     * @param task
+     * @return
+     */
+    public <T> Future<T> submit(String key, int parallelism, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        synchronized (this) {
+            limits.put(key, parallelism);
+            queues.computeIfAbsent(key, k -> new ArrayDeque<>()).add(future);
+            offerTurn(key);
+        }
+        workers.execute(this::runNext);
+        return future;
+    }
+
+    public Future<?> submit(String key, int parallelism, Runnable task) {
+        return submit(key, parallelism, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run all tasks of a key and wait until they are finished. If the waiting thread gets interrupted, the remaining tasks are cancelled.
+     *
+     * @param key
+     * @param parallelism maximum number of tasks running at the same time, 0 for no limit
+     * @param tasks
+     * @throws InterruptedException
+     */
+    public void invokeAll(String key, int parallelism, List<? extends Callable<?>> tasks) throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<>(tasks.size());
+        for (Callable<?> task : tasks) {
+            futures.add(submit(key, parallelism, task));
+        }
+        await(futures);
+    }
+
+    /**
+     * Run tasks that mostly wait for the database or the storage and wait until they are finished. In the virtual thread mode each task gets its own
+     * virtual thread and the parallelism is not limited here, the tasks must use {@link #runWithDatabase(Callable)} and
+     * {@link #getVolumePermits(String, int)} instead. Otherwise the tasks are queued like in {@link #invokeAll(String, int, List)}.
+     *
+     * @param key
+     * @param parallelism maximum number of tasks running at the same time in the workers, 0 for no limit
+     * @param tasks
+     * @throws InterruptedException
+     */
+    public void invokeAllWaiting(String key, int parallelism, List<? extends Callable<?>> tasks) throws InterruptedException {
+        ExecutorService executor = virtualThreads;
+        if (executor == null) {
+            invokeAll(key, parallelism, tasks);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(tasks.size());
+        for (Callable<?> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        await(futures);
+    }
+
+    /**
+     * @return true if waiting work runs in virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Run a task that needs a database connection. In the virtual thread mode it waits for a free connection first, the waiting tasks get the
+     * connections in the order they asked for them.
+     *
+     * @param task
+     * @return the result of the task
+     * @throws Exception the exception of the task
+     */
+    public <T> T runWithDatabase(Callable<T> task) throws Exception {
+        if (virtualThreads == null) {
+            return task.call();
+        }
+        Semaphore permits = databasePermits;
+        permits.acquire();
+        try {
+            return task.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Get the limit of parallel transfers to a storage volume, shared by all users
+     *
+     * @param volume name of the volume
+     * @param permits number of transfers allowed at the same time, used when the volume is requested the first time
+     * @return
+     */
+    public Semaphore getVolumePermits(String volume, int permits) {
+        return volumePermits.computeIfAbsent(volume, k -> new Semaphore(Math.max(1, permits), true));
+    }
+
+    private static void await(List<Future<?>> futures) throws InterruptedException {
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Error in a mass upload task", e.getCause());
+                } catch (CancellationException e) {
+                    // the scheduler was stopped
+                }
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Start a job that coordinates a batch. If the maximum number of jobs is running, it waits for a free place.
+     *
+     * @param job
+     * @return
+     */
+    public Future<?> submitJob(Runnable job) {
+        return jobs.submit(job);
+    }
+
+    /**
+     * @param key
+     * @return number of tasks of the key that wait for a worker
+     */
+    public synchronized int getQueuedTasks(String key) {
+        Deque<FutureTask<?>> queue = queues.get(key);
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return workers.getActiveCount();
+    }
+
+    @Override
+    public int getJobs() {
+        return jobs.getActiveCount() + jobs.getQueue().size();
+    }
+
+    /**
+     * Stop all threads and cancel the waiting tasks. The next call of {@link #getInstance(int, int, boolean, int)} creates a new scheduler.
+     */
+    @Override
+    public void shutdown() {
+        release(this);
+        jobs.shutdownNow();
+        workers.shutdownNow();
+        ExecutorService executor = virtualThreads;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        synchronized (this) {
+            for (Deque<FutureTask<?>> queue : queues.values()) {
+                for (FutureTask<?> task : queue) {
+                    task.cancel(false);
+                }
+            }
+            queues.clear();
+            turns.clear();
+            waitingForTurn.clear();
+        }
+    }
+
+    /**
+     * Called once for each submitted task by a worker. It runs the next task of the key whose turn it is. If no key may start a task, the call ends
+     * without work: the key gets its turn again when one of its running tasks finishes.
+     */
+    private void runNext() {
+        String key;
+        FutureTask<?> task;
+        synchronized (this) {
+            key = turns.poll();
+            if (key == null) {
+                return;
+            }
+            waitingForTurn.remove(key);
+            Deque<FutureTask<?>> queue = queues.get(key);
+            task = queue.poll();
+            running.merge(key, 1, Integer::sum);
+            if (queue.isEmpty()) {
+                queues.remove(key);
+            } else {
+                offerTurn(key);
+            }
+        }
+        try {
+            task.run();
+        } finally {
+            boolean again;
+            synchronized (this) {
+                if (running.merge(key, -1, Integer::sum) == 0) {
+                    running.remove(key);
+                    if (!queues.containsKey(key)) {
+                        limits.remove(key);
+                    }
+                }
+                again = offerTurn(key);
+            }
+            if (again) {
+                workers.execute(this::runNext);
+            }
+        }
+    }
+
+    /**
+     * Put the key at the end of the turns, if it has waiting tasks and may start another one
+     *
+     * @param key
+     * @return true if the key was added
+     */
+    private boolean offerTurn(String key) {
+        Deque<FutureTask<?>> queue = queues.get(key);
+        if (queue == null || queue.isEmpty() || waitingForTurn.contains(key)) {
+            return false;
+        }
+        int limit = limits.getOrDefault(key, 0);
+        if (limit > 0 && running.getOrDefault(key, 0) >= limit) {
+            return false;
+        }
+        waitingForTurn.add(key);
+        turns.add(key);
+        return true;
+    }
+}
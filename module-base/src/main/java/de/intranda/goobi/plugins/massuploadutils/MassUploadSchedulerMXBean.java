@@ -0,0 +1,24 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+/**
+ * Management interface of the mass upload scheduler of the application, registered as
+ * {@value MassUploadScheduler#OBJECT_NAME}
+ */
+public interface MassUploadSchedulerMXBean {
+
+    /**
+     * @return the number of worker threads running a task
+     */
+    int getActiveWorkers();
+
+    /**
+     * @return the number of batches running or waiting for a place
+     */
+    int getJobs();
+
+    /**
+     * Stop all threads and cancel the waiting tasks. A plugin loaded again without a restart of the application calls it on the scheduler of the
+     * previous version.
+     */
+    void shutdown();
+}
@@ -1,35 +1,173 @@
 package de.intranda.goobi.plugins.massuploadutils;
 
 import java.io.File;
+import java.util.HexFormat;
 import java.util.Optional;
 
-import lombok.Data;
-
-@Data
+/**
+ * A file of a mass upload batch. To keep large batches small, the folder and the process data are shared with the other files of the batch, the
+ * status and the status message are stored as ordinals and the checksum as bytes.
+ *
+ * Files are equal only to themselves. Their status and process change while the batch is handled, so they must not be found by value in a hash
+ * set or map. They are ordered by folder and name.
+ */
 public class MassUploadedFile implements Comparable<MassUploadedFile> {
 
-    private File file;
-    private String filename;
-    private MassUploadedFileStatus status;
-    private String statusmessage;
-    private int processId;
-    private String processTitle;
-    private String processFolder;
-    private int stepId;
-    private int tempId;
-    private boolean transfered = false;
-    private boolean checkedForBarcode;
-    private Optional<String> barcodeValue = Optional.empty();
-
-    public MassUploadedFile(File file, String filename) {
-        this.file = file;
+    private static final MassUploadedFileStatus[] STATUS_VALUES = MassUploadedFileStatus.values();
+    private static final FileMessage[] MESSAGE_VALUES = FileMessage.values();
+
+    private final File folder;
+    private final String filename;
+    private byte status;
+    private byte message;
+    private boolean transfered;
+    // the barcode is read in the background and written by another thread
+    private volatile boolean checkedForBarcode;
+    private volatile String barcodeValue;
+    // variable part of the message, only used for some errors
+    private String messageDetail;
+    private ProcessInfo process;
+    // checksum calculated while the file was uploaded or when it was compared with other files, null otherwise
+    private byte[] checksum;
+    // size and modification date when the file was read from the folder, used to detect changed files
+    private long fileSize;
+    private long lastModified;
+    // counts the status of all files in the batch
+    private StatusSummary statusSummary;
+
+    /**
+     * Use {@link UploadBatch#createFile(File, String)} to share the folder with the other files
+     *
+     * @param folder the folder containing the file
+     * @param filename
+     */
+    public MassUploadedFile(File folder, String filename) {
+        this.folder = folder;
         this.filename = filename;
-        status = MassUploadedFileStatus.UNKNWON;
-        statusmessage = "";
+        status = (byte) MassUploadedFileStatus.UNKNWON.ordinal();
+        message = (byte) FileMessage.NONE.ordinal();
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public File getFile() {
+        return new File(folder, filename);
+    }
+
+    public MassUploadedFileStatus getStatus() {
+        return STATUS_VALUES[status];
+    }
+
+    public void setStatus(MassUploadedFileStatus status) {
+        MassUploadedFileStatus oldStatus = getStatus();
+        this.status = (byte) status.ordinal();
+        if (statusSummary != null) {
+            statusSummary.statusChanged(oldStatus, status);
+        }
+    }
+
+    public FileMessage getMessage() {
+        return MESSAGE_VALUES[message];
+    }
+
+    public String getStatusmessage() {
+        return getMessage().format(messageDetail);
+    }
+
+    public void setStatusmessage(FileMessage message) {
+        setStatusmessage(message, null);
+    }
+
+    public void setStatusmessage(FileMessage message, String detail) {
+        this.message = (byte) message.ordinal();
+        this.messageDetail = detail;
+    }
+
+    public ProcessInfo getProcess() {
+        return process;
+    }
+
+    public void setProcess(ProcessInfo process) {
+        this.process = process;
+    }
+
+    public int getProcessId() {
+        return process == null ? 0 : process.getProcessId();
+    }
+
+    public String getProcessTitle() {
+        return process == null ? null : process.getProcessTitle();
+    }
+
+    public String getProcessFolder() {
+        return process == null ? null : process.getProcessFolder();
+    }
+
+    public int getStepId() {
+        return process == null ? 0 : process.getStepId();
+    }
+
+    public String getChecksum() {
+        return checksum == null ? null : HexFormat.of().formatHex(checksum);
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum == null ? null : HexFormat.of().parseHex(checksum);
+    }
+
+    public boolean isTransfered() {
+        return transfered;
+    }
+
+    public void setTransfered(boolean transfered) {
+        this.transfered = transfered;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public boolean isCheckedForBarcode() {
+        return checkedForBarcode;
+    }
+
+    public void setCheckedForBarcode(boolean checkedForBarcode) {
+        this.checkedForBarcode = checkedForBarcode;
+    }
+
+    public Optional<String> getBarcodeValue() {
+        return Optional.ofNullable(barcodeValue);
+    }
+
+    public void setBarcodeValue(Optional<String> barcodeValue) {
+        this.barcodeValue = barcodeValue.orElse(null);
+    }
+
+    void setStatusSummary(StatusSummary statusSummary) {
+        this.statusSummary = statusSummary;
     }
 
     @Override
     public int compareTo(MassUploadedFile o) {
-        return this.file.getAbsolutePath().compareTo(o.file.getAbsolutePath());
+        int result = this.folder.getPath().compareTo(o.folder.getPath());
+        return result != 0 ? result : this.filename.compareTo(o.filename);
     }
 }
@@ -0,0 +1,70 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.primefaces.model.FilterMeta;
+import org.primefaces.model.LazyDataModel;
+import org.primefaces.model.SortMeta;
+
+/**
+ * Lazy model for the file table, only the files of the current page are rendered. The files can be restricted to a single status.
+ */
+public class MassUploadedFileDataModel extends LazyDataModel<MassUploadedFile> {
+
+    private static final long serialVersionUID = -2948392652018652749L;
+
+    private final transient Supplier<List<MassUploadedFile>> files;
+    private final transient Supplier<StatusSummary> summary;
+    private MassUploadedFileStatus statusFilter;
+
+    /**
+     * @param files access to the current list of files
+     * @param summary access to the status numbers of the current list
+     */
+    public MassUploadedFileDataModel(Supplier<List<MassUploadedFile>> files, Supplier<StatusSummary> summary) {
+        this.files = files;
+        this.summary = summary;
+    }
+
+    public MassUploadedFileStatus getStatusFilter() {
+        return statusFilter;
+    }
+
+    public void setStatusFilter(MassUploadedFileStatus statusFilter) {
+        this.statusFilter = statusFilter;
+    }
+
+    public MassUploadedFileStatus[] getStatusValues() {
+        return MassUploadedFileStatus.values();
+    }
+
+    @Override
+    public int count(Map<String, FilterMeta> filterBy) {
+        return statusFilter == null ? files.get().size() : summary.get().getCount(statusFilter);
+    }
+
+    @Override
+    public List<MassUploadedFile> load(int first, int pageSize, Map<String, SortMeta> sortBy, Map<String, FilterMeta> filterBy) {
+        List<MassUploadedFile> all = files.get();
+        List<MassUploadedFile> page = new ArrayList<>(pageSize);
+        if (statusFilter == null) {
+            for (int i = first; i < Math.min(all.size(), first + pageSize); i++) {
+                page.add(all.get(i));
+            }
+        } else {
+            int matches = 0;
+            for (int i = 0; i < all.size() && page.size() < pageSize; i++) {
+                MassUploadedFile muf = all.get(i);
+                if (muf.getStatus() == statusFilter && matches++ >= first) {
+                    page.add(muf);
+                }
+            }
+        }
+        setRowCount(count(Collections.emptyMap()));
+        return page;
+    }
+}
@@ -0,0 +1,31 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.beans.ConstructorProperties;
+
+import lombok.Getter;
+
+/**
+ * Snapshot of the measurements of a phase. All times are given in milliseconds, the percentiles are exact to about 20 percent.
+ */
+@Getter
+public class PhaseStatistics {
+
+    private final String phase;
+    private final long count;
+    private final double totalMillis;
+    private final double p50Millis;
+    private final double p95Millis;
+    private final double p99Millis;
+    private final long bytes;
+
+    @ConstructorProperties({ "phase", "count", "totalMillis", "p50Millis", "p95Millis", "p99Millis", "bytes" })
+    public PhaseStatistics(String phase, long count, double totalMillis, double p50Millis, double p95Millis, double p99Millis, long bytes) {
+        this.phase = phase;
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.bytes = bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the files that still have to be transferred for each process. Exactly one caller gets informed that it finished the last file of a
+ * process, even if the files are handled in parallel. Files that could not be transferred are remembered, so that this caller can decide if the
+ * step of the process may be closed.
+ */
+public class ProcessCompletionTracker {
+
+    private final Map<Integer, AtomicInteger> remainingFiles = new ConcurrentHashMap<>();
+    private final Map<Integer, Queue<String>> failedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Add a file that has to be transferred into the process
+     *
+     * @param processId
+     */
+    public void register(int processId) {
+        remainingFiles.computeIfAbsent(processId, id -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Mark one file of the process as finished
+     *
+     * @param processId
+     * @return true if this was the last open file of the process
+     */
+    public boolean fileFinished(int processId) {
+        AtomicInteger remaining = remainingFiles.get(processId);
+        return remaining != null && remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * Mark one file of the process as finished without being transferred, instead of {@link #fileFinished(int)}
+     *
+     * @param processId
+     * @param filename
+     * @return true if this was the last open file of the process
+     */
+    public boolean fileFailed(int processId, String filename) {
+        failedFiles.computeIfAbsent(processId, id -> new ConcurrentLinkedQueue<>()).add(filename);
+        return fileFinished(processId);
+    }
+
+    /**
+     * Get the files of the process that could not be transferred. After the last file was finished, the list is complete.
+     *
+     * @param processId
+     * @return
+     */
+    public List<String> getFailedFiles(int processId) {
+        Queue<String> failed = failedFiles.get(processId);
+        return failed == null ? Collections.emptyList() : new ArrayList<>(failed);
+    }
+
+    /**
+     * Get the number of files that are not finished yet
+     *
+     * @param processId
+     * @return
+     */
+    public int getRemainingFiles(int processId) {
+        AtomicInteger remaining = remainingFiles.get(processId);
+        return remaining == null ? 0 : remaining.get();
+    }
+}
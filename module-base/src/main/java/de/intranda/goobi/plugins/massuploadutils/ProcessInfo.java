@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import lombok.Getter;
+
+/**
+ * Process data that is shared by all files of the same process. Instances are created by the {@link UploadBatch}.
+ */
+@Getter
+public class ProcessInfo {
+
+    private final int processId;
+    private final String processTitle;
+    private final String processFolder;
+    private final int stepId;
+
+    ProcessInfo(int processId, String processTitle, String processFolder, int stepId) {
+        this.processId = processId;
+        this.processTitle = processTitle;
+        this.processFolder = processFolder;
+        this.stepId = stepId;
+    }
+
+    boolean matches(String title, String folder, int step) {
+        return stepId == step && equals(processTitle, title) && equals(processFolder, folder);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,174 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+
+/**
+ * Assigns uploaded files to their processes. A file gets the status OK if exactly one process matches its identifier and this process has an open
+ * workflow step of the allowed names. It is used by the user interface and by the hot folders.
+ */
+public class ProcessMatcher {
+
+    private final ProcessResolver resolver;
+    private final List<String> stepTitles;
+
+    /**
+     * @param resolver
+     * @param stepTitles names of the workflow steps that must be open
+     */
+    public ProcessMatcher(ProcessResolver resolver, List<String> stepTitles) {
+        this.resolver = resolver;
+        this.stepTitles = stepTitles;
+    }
+
+    /**
+     * Create a matcher with the process search settings of the plugin configuration
+     *
+     * @param config
+     * @param scheduler scheduler for parallel process searches
+     * @return
+     */
+    public static ProcessMatcher fromConfiguration(XMLConfiguration config, MassUploadScheduler scheduler) {
+        List<String> stepTitles = Arrays.asList(config.getStringArray("allowed-step"));
+        ProcessTitleIndex processTitleIndex = null;
+        if (config.getBoolean("process-index", false)) {
+            processTitleIndex = ProcessTitleIndex.getInstance(stepTitles, config.getLong("process-index-refresh", 60) * 1000,
+                    config.getInt("process-index-max-size", 500000), scheduler);
+        }
+        return new ProcessMatcher(new ProcessResolver(config.getString("match-type", "contains"), processTitleIndex, scheduler), stepTitles);
+    }
+
+    /**
+     * Search the processes of all files together and assign them
+     *
+     * @param files
+     * @param identifiers the identifier of each file, in the same order
+     * @param batch batch to get the shared process data from
+     * @param metrics metrics of the batch
+     */
+    public void assign(List<MassUploadedFile> files, List<String> identifiers, UploadBatch batch, UploadMetrics metrics) {
+        Map<String, List<Process>> searchCache = resolve(identifiers, metrics);
+        for (int i = 0; i < files.size(); i++) {
+            assign(files.get(i), searchCache, identifiers.get(i), batch, metrics);
+        }
+    }
+
+    /**
+     * Search the processes for the identifiers
+     *
+     * @param identifiers
+     * @param metrics metrics of the batch
+     * @return
+     */
+    public Map<String, List<Process>> resolve(List<String> identifiers, UploadMetrics metrics) {
+        long start = System.nanoTime();
+        Map<String, List<Process>> result = resolver.resolve(identifiers);
+        metrics.record(UploadMetrics.Phase.PROCESS_LOOKUP, start, 0);
+        return result;
+    }
+
+    /**
+     * Assign a single file
+     *
+     * @param uploadedFile
+     * @param searchCache found processes, identifiers missing here are searched and added
+     * @param identifier
+     * @param batch
+     * @param metrics
+     */
+    public void assign(MassUploadedFile uploadedFile, Map<String, List<Process>> searchCache, String identifier, UploadBatch batch,
+            UploadMetrics metrics) {
+        // get all matching processes
+        // first try to get this from the cache
+        List<Process> hitlist = searchCache == null ? null : searchCache.get(identifier);
+        if (hitlist == null) {
+            // there was no result in the cache. Get result from the DB and then add it to the cache.
+            hitlist = resolve(Collections.singletonList(identifier), metrics).get(identifier);
+            if (searchCache != null) {
+                searchCache.put(identifier, hitlist);
+            }
+        }
+
+        // if list is empty
+        if (hitlist == null || hitlist.isEmpty()) {
+            uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
+            uploadedFile.setStatusmessage(FileMessage.NO_PROCESS);
+        } else // if list is bigger then one hit
+        if (hitlist.size() > 1) {
+            StringBuilder processtitles = new StringBuilder();
+            for (Process process : hitlist) {
+                processtitles.append(process.getTitel()).append(", ");
+            }
+            uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
+            uploadedFile.setStatusmessage(FileMessage.SEVERAL_PROCESSES, processtitles.toString());
+        } else {
+            // we have just one hit and take it
+            Process p = hitlist.get(0);
+            String processFolder = null;
+            try {
+                processFolder = p.getImagesOrigDirectory(false);
+            } catch (IOException | SwapException | DAOException e) {
+                uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
+                uploadedFile.setStatusmessage(FileMessage.MASTER_FOLDER_ERROR, e.getMessage());
+            }
+            int stepId = uploadedFile.getStepId();
+
+            if (uploadedFile.getStatus() != MassUploadedFileStatus.ERROR) {
+                // check if one of the open workflow steps is named as expected
+                boolean workflowStepAsExpected = false;
+
+                for (Step s : p.getSchritte()) {
+                    if (s.getBearbeitungsstatusEnum() == StepStatus.OPEN) {
+                        for (String st : stepTitles) {
+                            if (st.equals(s.getTitel())) {
+                                workflowStepAsExpected = true;
+                                stepId = s.getId();
+                            }
+                        }
+                    }
+                }
+
+                // if correct open step was found, remember it
+                uploadedFile.setProcess(batch.getProcess(p.getId(), p.getTitel(), processFolder, stepId));
+                if (workflowStepAsExpected) {
+                    uploadedFile.setStatus(MassUploadedFileStatus.OK);
+                } else {
+                    uploadedFile.setStatus(MassUploadedFileStatus.ERROR);
+                    uploadedFile.setStatusmessage(FileMessage.NO_OPEN_STEP);
+                }
+            } else {
+                uploadedFile.setProcess(batch.getProcess(p.getId(), p.getTitel(), processFolder, stepId));
+            }
+        }
+    }
+
+    /**
+     * Get the identifiers of files that are separated by barcode pages. Each file belongs to the last barcode found on it or on a page before it.
+     *
+     * @param files the files in the order of the pages, all of them checked for barcodes
+     * @return the identifier of each file, empty for pages before the first barcode
+     */
+    public static List<String> getBarcodeIdentifiers(List<MassUploadedFile> files) {
+        List<String> identifiers = new ArrayList<>(files.size());
+        String currentBarcode = "";
+        for (MassUploadedFile muf : files) {
+            if (muf.getBarcodeValue().isPresent()) {
+                currentBarcode = muf.getBarcodeValue().get();
+            }
+            identifiers.add(currentBarcode);
+        }
+        return identifiers;
+    }
+}
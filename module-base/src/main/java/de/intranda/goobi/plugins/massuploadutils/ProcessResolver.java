@@ -0,0 +1,288 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.goobi.beans.Process;
+import org.goobi.production.flow.statistics.hibernate.FilterHelper;
+
+import de.sub.goobi.persistence.managers.ProcessManager;
+
+/**
+ * Finds the processes for a whole batch of identifiers with a few database queries. The identifiers are split into chunks, each chunk is requested
+ * with a single query: an IN list for exact matching or the combined filters for matching by contained value.
+ *
+ * If a {@link ProcessTitleIndex} is available, the identifiers are matched in memory first. Only the processes found there are loaded by id, all
+ * identifiers without a hit in the index are searched in the database.
+ *
+ * In the virtual thread mode of the scheduler the chunks are requested in parallel, limited by the database connections of the scheduler.
+ *
+ * A file needs exactly one process, so only a few processes are loaded per identifier. If a chunk reaches its limit, e.g. because of a short or
+ * generic identifier, its identifiers are searched one by one with the limit per identifier.
+ *
+ * The processes of a combined query are assigned to the identifiers by comparing their titles. For matching by contained value this is only done
+ * for plain identifiers, where the comparison gives the same result as the filter. Identifiers with spaces, filter syntax, SQL wildcards or other
+ * characters are searched one by one, all processes found for them are hits.
+ */
+public class ProcessResolver {
+
+    private static final int EXACT_CHUNK_SIZE = 500;
+    private static final int CONTAINS_CHUNK_SIZE = 50;
+    // enough to list the candidates if an identifier is not unique
+    private static final int MAX_HITS_PER_IDENTIFIER = 5;
+    // identifiers that the filter searches as a plain part of the title, in the same way as a case insensitive comparison of the titles
+    private static final Pattern PLAIN_IDENTIFIER = Pattern.compile("[A-Za-z0-9][A-Za-z0-9.-]*");
+
+    /**
+     * Runs a process search with the given SQL filter and returns at most limit processes
+     */
+    @FunctionalInterface
+    public interface ProcessQuery {
+        List<Process> find(String filter, int limit);
+    }
+
+    private final boolean exactMatch;
+    private final ProcessQuery query;
+    private final ProcessTitleIndex index;
+    private final MassUploadScheduler scheduler;
+
+    public ProcessResolver(String matchType, ProcessTitleIndex index) {
+        this(matchType, index, (MassUploadScheduler) null);
+    }
+
+    public ProcessResolver(String matchType, ProcessTitleIndex index, MassUploadScheduler scheduler) {
+        this(matchType, index, scheduler, (filter, limit) -> ProcessManager.getProcesses("prozesse.titel", filter, 0, limit, null));
+    }
+
+    public ProcessResolver(String matchType, ProcessTitleIndex index, ProcessQuery query) {
+        this(matchType, index, null, query);
+    }
+
+    /**
+     * @param matchType exact or contains
+     * @param index title index to use first, can be null
+     * @param scheduler scheduler to request the chunks in parallel, can be null
+     * @param query
+     */
+    public ProcessResolver(String matchType, ProcessTitleIndex index, MassUploadScheduler scheduler, ProcessQuery query) {
+        this.exactMatch = "exact".equals(matchType);
+        this.index = index;
+        this.scheduler = scheduler;
+        this.query = query;
+    }
+
+    /**
+     * Search the processes for all given identifiers
+     *
+     * @param identifiers
+     * @return the matching processes for each identifier, the list is empty if no process was found
+     */
+    public Map<String, List<Process>> resolve(Collection<String> identifiers) {
+        Set<String> distinct = new LinkedHashSet<>(identifiers);
+        Map<String, List<Process>> result = new HashMap<>();
+        if (index != null) {
+            resolveFromIndex(distinct, result);
+        }
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        int chunkSize = exactMatch ? EXACT_CHUNK_SIZE : CONTAINS_CHUNK_SIZE;
+        for (String identifier : distinct) {
+            if (result.containsKey(identifier)) {
+                continue;
+            }
+            if (identifier == null || identifier.isEmpty()) {
+                // an empty value would match every process
+                result.put(identifier, new ArrayList<>());
+                continue;
+            }
+            if (!exactMatch && !PLAIN_IDENTIFIER.matcher(identifier).matches()) {
+                // the hits of a combined query could not be assigned correctly
+                chunks.add(Collections.singletonList(identifier));
+                continue;
+            }
+            chunk.add(identifier);
+            if (chunk.size() == chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        if (chunks.size() > 1 && scheduler != null && scheduler.isVirtualThreads()) {
+            resolveInParallel(chunks, result);
+        } else {
+            for (List<String> c : chunks) {
+                resolveChunk(c, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Request all chunks at the same time. If the waiting thread gets interrupted, the missing identifiers are not part of the result.
+     *
+     * @param chunks
+     * @param result
+     */
+    private void resolveInParallel(List<List<String>> chunks, Map<String, List<Process>> result) {
+        Map<String, List<Process>> found = new ConcurrentHashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+        for (List<String> c : chunks) {
+            tasks.add(() -> scheduler.runWithDatabase(() -> {
+                Map<String, List<Process>> chunkResult = new HashMap<>();
+                resolveChunk(c, chunkResult);
+                found.putAll(chunkResult);
+                return null;
+            }));
+        }
+        try {
+            scheduler.invokeAllWaiting("process-search", 0, tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.putAll(found);
+    }
+
+    /**
+     * Match the identifiers against the title index and load the found processes by their ids
+     *
+     * @param identifiers
+     * @param result
+     */
+    private void resolveFromIndex(Set<String> identifiers, Map<String, List<Process>> result) {
+        Map<String, List<Integer>> idsByIdentifier = new HashMap<>();
+        Set<Integer> allIds = new LinkedHashSet<>();
+        for (String identifier : identifiers) {
+            if (identifier == null || identifier.isEmpty()) {
+                continue;
+            }
+            List<Integer> ids = index.find(identifier, exactMatch);
+            if (ids == null) {
+                // index is not available
+                return;
+            }
+            if (ids.size() > MAX_HITS_PER_IDENTIFIER) {
+                ids = ids.subList(0, MAX_HITS_PER_IDENTIFIER);
+            }
+            if (!ids.isEmpty()) {
+                idsByIdentifier.put(identifier, ids);
+                allIds.addAll(ids);
+            }
+        }
+        Map<Integer, Process> processes = new HashMap<>();
+        List<Integer> chunk = new ArrayList<>();
+        for (Integer id : allIds) {
+            chunk.add(id);
+            if (chunk.size() == EXACT_CHUNK_SIZE) {
+                loadProcessesById(chunk, processes);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            loadProcessesById(chunk, processes);
+        }
+        for (Map.Entry<String, List<Integer>> entry : idsByIdentifier.entrySet()) {
+            List<Process> hits = new ArrayList<>();
+            for (Integer id : entry.getValue()) {
+                Process p = processes.get(id);
+                if (p != null) {
+                    hits.add(p);
+                }
+            }
+            // processes deleted since the last index update are searched in the database again
+            if (!hits.isEmpty()) {
+                result.put(entry.getKey(), hits);
+            }
+        }
+    }
+
+    private void loadProcessesById(List<Integer> ids, Map<Integer, Process> processes) {
+        StringBuilder filter = new StringBuilder("prozesse.ProzesseID IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                filter.append(", ");
+            }
+            filter.append(ids.get(i));
+        }
+        filter.append(')');
+        for (Process p : query.find(filter.toString(), ids.size())) {
+            processes.put(p.getId(), p);
+        }
+    }
+
+    private void resolveChunk(List<String> identifiers, Map<String, List<Process>> result) {
+        int limit = identifiers.size() * MAX_HITS_PER_IDENTIFIER;
+        // one more than the limit shows that the result was cut
+        List<Process> processes = query.find(createFilter(identifiers), limit + 1);
+        if (processes.size() > limit && identifiers.size() > 1) {
+            for (String identifier : identifiers) {
+                List<String> single = Collections.singletonList(identifier);
+                assignHits(single, query.find(createFilter(single), MAX_HITS_PER_IDENTIFIER), result);
+            }
+        } else {
+            assignHits(identifiers, processes, result);
+        }
+    }
+
+    private String createFilter(List<String> identifiers) {
+        StringBuilder filter = new StringBuilder();
+        if (exactMatch) {
+            filter.append("prozesse.titel IN (");
+            for (int i = 0; i < identifiers.size(); i++) {
+                if (i > 0) {
+                    filter.append(", ");
+                }
+                filter.append('\'').append(escapeSql(identifiers.get(i))).append('\'');
+            }
+            filter.append(')');
+        } else {
+            for (int i = 0; i < identifiers.size(); i++) {
+                if (i > 0) {
+                    filter.append(" OR ");
+                }
+                filter.append('(').append(FilterHelper.criteriaBuilder(identifiers.get(i), false, null, null, null, true, false)).append(')');
+            }
+        }
+        return filter.toString();
+    }
+
+    /**
+     * Assign the found processes to the identifiers they match, at most {@link #MAX_HITS_PER_IDENTIFIER} each. The processes found for a single
+     * identifier all match it.
+     *
+     * @param identifiers
+     * @param processes
+     * @param result
+     */
+    private void assignHits(List<String> identifiers, List<Process> processes, Map<String, List<Process>> result) {
+        for (String identifier : identifiers) {
+            List<Process> hits = new ArrayList<>();
+            String lowerIdentifier = identifier.toLowerCase(Locale.ROOT);
+            for (Process p : processes) {
+                if (hits.size() == MAX_HITS_PER_IDENTIFIER) {
+                    break;
+                }
+                if (identifiers.size() == 1 || (exactMatch ? identifier.equalsIgnoreCase(p.getTitel())
+                        : p.getTitel().toLowerCase(Locale.ROOT).contains(lowerIdentifier))) {
+                    hits.add(p);
+                }
+            }
+            result.put(identifier, hits);
+        }
+    }
+
+    private static String escapeSql(String value) {
+        return value.replace("'", "''");
+    }
+}
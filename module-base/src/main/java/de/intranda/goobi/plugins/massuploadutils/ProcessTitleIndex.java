@@ -0,0 +1,354 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ColumnListHandler;
+
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.persistence.managers.MySQLHelper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Application wide index of the titles of all processes with an open workflow step of the configured names. Exact and contains matching is answered
+ * from memory, for contained values a trigram index is used.
+ *
+ * The index is refreshed incrementally: only the ids of the open processes are requested again, titles are loaded for new processes only. It gets
+ * rebuilt completely once an hour and is dropped if it was not used for an hour. If there are more processes than allowed, the index stays
+ * disabled and all searches go to the database.
+ *
+ * Building and refreshing runs as a job of the scheduler, so that no user request waits for it. Meanwhile the searches use the previous state, or
+ * the database if there is none yet.
+ */
+@Log4j2
+public class ProcessTitleIndex {
+
+    private static final Map<List<String>, ProcessTitleIndex> INSTANCES = new ConcurrentHashMap<>();
+
+    private static final long FULL_REBUILD_INTERVAL = 60 * 60 * 1000L;
+    private static final long MAX_IDLE_TIME = 60 * 60 * 1000L;
+    private static final int GRAM_LENGTH = 3;
+    private static final int QUERY_CHUNK_SIZE = 1000;
+
+    private final List<String> stepTitles;
+    private volatile long refreshInterval;
+    private volatile int maxSize;
+    private volatile MassUploadScheduler scheduler;
+    private final AtomicBoolean building = new AtomicBoolean();
+    // set when the settings changed, the next refresh reads all titles again
+    private volatile boolean outdated;
+    private volatile Snapshot snapshot;
+    private volatile long lastAccess;
+
+    /**
+     * Get the shared index for the given workflow step names. If the index exists already, it uses the given settings from now on.
+     *
+     * @param stepTitles names of the steps that must be open
+     * @param refreshInterval milliseconds after which the index gets updated
+     * @param maxSize maximum number of processes to keep in memory
+     * @param scheduler scheduler to build the index in, null to build it in the calling thread
+     * @return
+     */
+    public static ProcessTitleIndex getInstance(List<String> stepTitles, long refreshInterval, int maxSize, MassUploadScheduler scheduler) {
+        ProcessTitleIndex index = INSTANCES.computeIfAbsent(new ArrayList<>(stepTitles), ProcessTitleIndex::new);
+        index.configure(refreshInterval, maxSize, scheduler);
+        return index;
+    }
+
+    private ProcessTitleIndex(List<String> stepTitles) {
+        this.stepTitles = stepTitles;
+    }
+
+    private synchronized void configure(long refreshInterval, int maxSize, MassUploadScheduler scheduler) {
+        if (snapshot != null && (refreshInterval != this.refreshInterval || maxSize != this.maxSize)) {
+            outdated = true;
+        }
+        this.refreshInterval = refreshInterval;
+        this.maxSize = maxSize;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Find the ids of all indexed processes whose title matches the identifier
+     *
+     * @param identifier
+     * @param exactMatch true to compare the complete title, false if the title must contain the identifier
+     * @return the process ids or null, if the index is not available
+     */
+    public List<Integer> find(String identifier, boolean exactMatch) {
+        Snapshot current = currentSnapshot();
+        if (current == null) {
+            return null;
+        }
+        String value = identifier.toLowerCase(Locale.ROOT);
+        if (exactMatch) {
+            int[] positions = current.duplicateTitles.get(value);
+            if (positions != null) {
+                // several processes have this title, the caller reports them
+                List<Integer> hits = new ArrayList<>(positions.length);
+                for (int position : positions) {
+                    hits.add(current.ids[position]);
+                }
+                return hits;
+            }
+            Integer position = current.positionByTitle.get(value);
+            return position == null ? Collections.emptyList() : Collections.singletonList(current.ids[position]);
+        }
+
+        List<Integer> hits = new ArrayList<>();
+        if (value.length() < GRAM_LENGTH) {
+            for (int i = 0; i < current.titles.length; i++) {
+                if (current.titles[i].contains(value)) {
+                    hits.add(current.ids[i]);
+                }
+            }
+            return hits;
+        }
+        // only the titles containing the rarest trigram of the value need to be checked
+        int[] candidates = null;
+        for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+            int[] positions = current.grams.get(value.substring(i, i + GRAM_LENGTH));
+            if (positions == null) {
+                return hits;
+            }
+            if (candidates == null || positions.length < candidates.length) {
+                candidates = positions;
+            }
+        }
+        for (int position : candidates) {
+            if (current.titles[position].contains(value)) {
+                hits.add(current.ids[position]);
+            }
+        }
+        return hits;
+    }
+
+    private Snapshot currentSnapshot() {
+        long now = System.currentTimeMillis();
+        Snapshot current = snapshot;
+        if (current != null && now - lastAccess > MAX_IDLE_TIME) {
+            // nobody used the index for a long time, don't keep the memory
+            snapshot = null;
+            current = null;
+        }
+        lastAccess = now;
+        if (current == null || outdated || now - current.created > refreshInterval) {
+            refresh(current);
+        }
+        return current == null || current.disabled ? null : current;
+    }
+
+    /**
+     * Start building a new state, unless this happens already. Other threads keep using the old state while the index gets updated.
+     *
+     * @param current the state to update, null to build a new one
+     */
+    private void refresh(Snapshot current) {
+        if (!building.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable job = () -> {
+            try {
+                long start = System.currentTimeMillis();
+                boolean full = current == null || outdated || start - current.fullBuild > FULL_REBUILD_INTERVAL;
+                outdated = false;
+                Snapshot built = build(full ? null : current, start);
+                if (built != null) {
+                    snapshot = built;
+                } else if (current == null) {
+                    snapshot = Snapshot.disabled(start);
+                }
+            } finally {
+                building.set(false);
+            }
+        };
+        MassUploadScheduler executor = scheduler;
+        if (executor == null) {
+            job.run();
+            return;
+        }
+        try {
+            executor.submitJob(job);
+        } catch (RejectedExecutionException e) {
+            // the scheduler was stopped, the next request tries again with the new one
+            building.set(false);
+        }
+    }
+
+    /**
+     * Read the titles of the open processes
+     *
+     * @param previous state to take the known titles from, null to read all titles
+     * @param now
+     * @return the new state or null, if the database could not be read
+     */
+    private Snapshot build(Snapshot previous, long now) {
+        if (stepTitles.isEmpty()) {
+            return Snapshot.disabled(now);
+        }
+        try {
+            List<Integer> openProcesses = loadOpenProcessIds();
+            if (openProcesses.size() > maxSize) {
+                log.warn("Process title index is disabled, {} processes exceed the maximum of {}", openProcesses.size(), maxSize);
+                return Snapshot.disabled(now);
+            }
+            Map<Integer, String> titles = new HashMap<>();
+            List<Integer> missing = new ArrayList<>();
+            for (Integer id : openProcesses) {
+                String title = previous == null || previous.disabled ? null : previous.titleById.get(id);
+                if (title == null) {
+                    missing.add(id);
+                } else {
+                    titles.put(id, title);
+                }
+            }
+            for (int i = 0; i < missing.size(); i += QUERY_CHUNK_SIZE) {
+                titles.putAll(loadTitles(missing.subList(i, Math.min(missing.size(), i + QUERY_CHUNK_SIZE))));
+            }
+            return new Snapshot(titles, now, previous == null || previous.disabled ? now : previous.fullBuild);
+        } catch (SQLException e) {
+            log.error("Process title index could not be loaded", e);
+            // the old state stays in use
+            return null;
+        }
+    }
+
+    private List<Integer> loadOpenProcessIds() throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT DISTINCT schritte.ProzesseID FROM schritte JOIN prozesse ON prozesse.ProzesseID = schritte.ProzesseID ");
+        sql.append("WHERE prozesse.istTemplate = false AND schritte.Bearbeitungsstatus = ? AND schritte.Titel IN (");
+        appendPlaceholders(sql, stepTitles.size());
+        sql.append(')');
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(StepStatus.OPEN.getValue());
+        parameters.addAll(stepTitles);
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            return new QueryRunner().query(connection, sql.toString(), new ColumnListHandler<Integer>(1), parameters.toArray());
+        } finally {
+            if (connection != null) {
+                MySQLHelper.closeConnection(connection);
+            }
+        }
+    }
+
+    private static Map<Integer, String> loadTitles(Collection<Integer> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ProzesseID, Titel FROM prozesse WHERE ProzesseID IN (");
+        appendPlaceholders(sql, ids.size());
+        sql.append(')');
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            return new QueryRunner().query(connection, sql.toString(), rs -> {
+                Map<Integer, String> answer = new HashMap<>();
+                while (rs.next()) {
+                    answer.put(rs.getInt(1), rs.getString(2));
+                }
+                return answer;
+            }, ids.toArray());
+        } finally {
+            if (connection != null) {
+                MySQLHelper.closeConnection(connection);
+            }
+        }
+    }
+
+    private static void appendPlaceholders(StringBuilder sql, int count) {
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+    }
+
+    /**
+     * Immutable state of the index, replaced as a whole on every refresh
+     */
+    private static class Snapshot {
+        private final boolean disabled;
+        private final long created;
+        private final long fullBuild;
+        private final Map<Integer, String> titleById;
+        private final int[] ids;
+        // lower case titles, used for matching
+        private final String[] titles;
+        private final Map<String, Integer> positionByTitle;
+        // all positions of the titles that several processes have
+        private final Map<String, int[]> duplicateTitles;
+        private final Map<String, int[]> grams;
+
+        private static Snapshot disabled(long now) {
+            return new Snapshot(null, now, now);
+        }
+
+        private Snapshot(Map<Integer, String> titleById, long created, long fullBuild) {
+            this.created = created;
+            this.fullBuild = fullBuild;
+            this.disabled = titleById == null;
+            this.titleById = titleById == null ? Collections.emptyMap() : titleById;
+            int size = this.titleById.size();
+            ids = new int[size];
+            titles = new String[size];
+            positionByTitle = new HashMap<>(size * 2);
+            duplicateTitles = new HashMap<>();
+
+            Map<String, int[]> postings = new HashMap<>();
+            Map<String, Integer> postingSizes = new HashMap<>();
+            int position = 0;
+            for (Map.Entry<Integer, String> entry : this.titleById.entrySet()) {
+                String title = entry.getValue() == null ? "" : entry.getValue().toLowerCase(Locale.ROOT);
+                ids[position] = entry.getKey();
+                titles[position] = title;
+                Integer first = positionByTitle.putIfAbsent(title, position);
+                if (first != null) {
+                    int[] positions = duplicateTitles.get(title);
+                    if (positions == null) {
+                        positions = new int[] { first, position };
+                    } else {
+                        positions = Arrays.copyOf(positions, positions.length + 1);
+                        positions[positions.length - 1] = position;
+                    }
+                    duplicateTitles.put(title, positions);
+                }
+                for (String gram : gramsOf(title)) {
+                    int[] list = postings.get(gram);
+                    int listSize = postingSizes.getOrDefault(gram, 0);
+                    if (list == null) {
+                        list = new int[4];
+                    } else if (list.length == listSize) {
+                        list = Arrays.copyOf(list, listSize * 2);
+                    }
+                    list[listSize] = position;
+                    postings.put(gram, list);
+                    postingSizes.put(gram, listSize + 1);
+                }
+                position++;
+            }
+            for (Map.Entry<String, int[]> entry : postings.entrySet()) {
+                entry.setValue(Arrays.copyOf(entry.getValue(), postingSizes.get(entry.getKey())));
+            }
+            grams = postings;
+        }
+
+        private static Set<String> gramsOf(String title) {
+            Set<String> answer = new HashSet<>();
+            for (int i = 0; i + GRAM_LENGTH <= title.length(); i++) {
+                answer.add(title.substring(i, i + GRAM_LENGTH));
+            }
+            return answer;
+        }
+    }
+}
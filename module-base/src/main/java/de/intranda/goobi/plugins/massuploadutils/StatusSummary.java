@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of files per status in the current batch. The files report each status change, so the numbers never need to be counted again.
+ */
+public class StatusSummary {
+
+    private final Map<MassUploadedFileStatus, AtomicInteger> counts = new EnumMap<>(MassUploadedFileStatus.class);
+    // incremented with every change, so that a client can detect changes cheaply
+    private final AtomicLong version = new AtomicLong();
+
+    public StatusSummary() {
+        for (MassUploadedFileStatus status : MassUploadedFileStatus.values()) {
+            counts.put(status, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Count the file and follow its status changes
+     *
+     * @param muf
+     */
+    public void add(MassUploadedFile muf) {
+        muf.setStatusSummary(this);
+        counts.get(muf.getStatus()).incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    public void addAll(Collection<MassUploadedFile> files) {
+        for (MassUploadedFile muf : files) {
+            add(muf);
+        }
+    }
+
+    void statusChanged(MassUploadedFileStatus oldStatus, MassUploadedFileStatus newStatus) {
+        if (oldStatus != newStatus) {
+            counts.get(oldStatus).decrementAndGet();
+            counts.get(newStatus).incrementAndGet();
+        }
+        version.incrementAndGet();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public int getCount(MassUploadedFileStatus status) {
+        return counts.get(status).get();
+    }
+
+    public int getOk() {
+        return getCount(MassUploadedFileStatus.OK);
+    }
+
+    public int getError() {
+        return getCount(MassUploadedFileStatus.ERROR);
+    }
+
+    public int getUnknown() {
+        return getCount(MassUploadedFileStatus.UNKNWON);
+    }
+
+    public int getTotal() {
+        int total = 0;
+        for (AtomicInteger count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+}
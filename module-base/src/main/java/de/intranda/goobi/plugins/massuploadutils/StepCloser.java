@@ -0,0 +1,195 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.goobi.beans.Step;
+import org.goobi.beans.User;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.PluginType;
+import org.goobi.production.plugin.PluginLoader;
+import org.goobi.production.plugin.interfaces.IPlugin;
+import org.goobi.production.plugin.interfaces.IValidatorPlugin;
+
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.HelperSchritte;
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.persistence.managers.StepManager;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Validates and closes the workflow steps of all processes that got new images. The steps are loaded with a few queries, the validation plugins are
+ * looked up once per name. Validation and closing run in the shared scheduler, the number of parallel steps limits the database connections in use.
+ *
+ * The messages are collected and must be shown by the caller, as the worker threads have no faces context.
+ */
+@Log4j2
+public class StepCloser {
+
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private final MassUploadScheduler scheduler;
+    private final String key;
+    private final int threads;
+    private final Map<String, Class<? extends IPlugin>> validatorClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Result of a run, the failures are stored by process title
+     */
+    @Getter
+    public static class Result {
+        private final List<MassUploadedProcess> finishedProcesses = Collections.synchronizedList(new ArrayList<>());
+        private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+    }
+
+    /**
+     * @param scheduler scheduler that runs the validation and closing
+     * @param key queue of the steps in the scheduler
+     * @param threads maximum number of steps that are closed in parallel
+     */
+    public StepCloser(MassUploadScheduler scheduler, String key, int threads) {
+        this.scheduler = scheduler;
+        this.key = key;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Validate and close all given steps. The method returns when all steps are handled.
+     *
+     * @param stepIds
+     * @param user the user that gets registered as the editor of the steps
+     * @return the closed steps and the errors
+     * @throws InterruptedException
+     */
+    public Result close(Collection<Integer> stepIds, User user) throws InterruptedException {
+        return close(stepIds, user, null);
+    }
+
+    /**
+     * Validate and close all given steps and record each closed step in the journal. Steps that are already done are skipped.
+     *
+     * @param stepIds
+     * @param user the user that gets registered as the editor of the steps
+     * @param journal journal of the batch, can be null
+     * @return the closed steps and the errors
+     * @throws InterruptedException
+     */
+    public Result close(Collection<Integer> stepIds, User user, InsertJournal journal) throws InterruptedException {
+        return close(stepIds, user, journal, null);
+    }
+
+    /**
+     * Validate and close all given steps, record them in the journal and measure the validation and the closing of each step
+     *
+     * @param stepIds
+     * @param user the user that gets registered as the editor of the steps
+     * @param journal journal of the batch, can be null
+     * @param metrics metrics of the batch, can be null
+     * @return the closed steps and the errors
+     * @throws InterruptedException
+     */
+    public Result close(Collection<Integer> stepIds, User user, InsertJournal journal, UploadMetrics metrics) throws InterruptedException {
+        Result result = new Result();
+        List<Step> steps = loadSteps(stepIds);
+        if (steps.isEmpty()) {
+            return result;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(steps.size());
+        for (Step step : steps) {
+            tasks.add(() -> scheduler.runWithDatabase(() -> {
+                closeStep(step, user, result, journal, metrics);
+                return null;
+            }));
+        }
+        scheduler.invokeAllWaiting(key, threads, tasks);
+        return result;
+    }
+
+    private void closeStep(Step so, User user, Result result, InsertJournal journal, UploadMetrics metrics) {
+        String processTitle = so.getProzess().getTitel();
+        if (so.getBearbeitungsstatusEnum() == StepStatus.DONE) {
+            // closed before an interruption
+            if (journal != null) {
+                journal.stepClosed(so.getId());
+            }
+            return;
+        }
+        try {
+            if (so.getValidationPlugin() != null && so.getValidationPlugin().length() > 0) {
+                long start = System.nanoTime();
+                IValidatorPlugin ivp = getValidator(so.getValidationPlugin());
+                ivp.setStep(so);
+                boolean valid = ivp.validate();
+                if (metrics != null) {
+                    metrics.record(UploadMetrics.Phase.VALIDATION, start, 0);
+                }
+                if (!valid) {
+                    log.error("Error while closing the step " + so.getTitel() + " for process " + processTitle);
+                    result.failures.put(processTitle, "Error while closing the step " + so.getTitel() + " for process " + processTitle);
+                }
+            }
+            Helper.addMessageToProcessJournal(so.getProcessId(), LogType.DEBUG,
+                    "Images uploaded and step " + so.getTitel() + " finished using Massupload Plugin.");
+            long start = System.nanoTime();
+            HelperSchritte hs = new HelperSchritte();
+            so.setBearbeitungsbenutzer(user);
+            hs.CloseStepObjectAutomatic(so);
+            if (metrics != null) {
+                metrics.record(UploadMetrics.Phase.CLOSE_STEP, start, 0);
+            }
+            if (journal != null) {
+                journal.stepClosed(so.getId());
+            }
+            result.finishedProcesses.add(new MassUploadedProcess(so));
+        } catch (RuntimeException e) {
+            // one broken process must not stop the others
+            log.error("Error while closing the step " + so.getTitel() + " for process " + processTitle, e);
+            result.failures.put(processTitle, "Error while closing the step " + so.getTitel() + " for process " + processTitle + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a new validator for each step, but search the plugin only once per name
+     *
+     * @param title
+     * @return
+     */
+    private IValidatorPlugin getValidator(String title) {
+        Class<? extends IPlugin> validatorClass = validatorClasses.get(title);
+        if (validatorClass != null) {
+            try {
+                return (IValidatorPlugin) validatorClass.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                log.debug("Validation plugin {} cannot be created directly, it gets loaded again", title);
+            }
+        }
+        IValidatorPlugin ivp = (IValidatorPlugin) PluginLoader.getPluginByTitle(PluginType.Validation, title);
+        validatorClasses.put(title, ivp.getClass());
+        return ivp;
+    }
+
+    private static List<Step> loadSteps(Collection<Integer> stepIds) {
+        List<Integer> ids = new ArrayList<>(stepIds);
+        List<Step> steps = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i += QUERY_CHUNK_SIZE) {
+            StringBuilder filter = new StringBuilder("schritte.SchritteID IN (");
+            List<Integer> chunk = ids.subList(i, Math.min(ids.size(), i + QUERY_CHUNK_SIZE));
+            for (int j = 0; j < chunk.size(); j++) {
+                if (j > 0) {
+                    filter.append(", ");
+                }
+                filter.append(chunk.get(j));
+            }
+            filter.append(')');
+            steps.addAll(StepManager.getSteps(null, filter.toString()));
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,8 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+public enum TransferMode {
+    // copy the file and delete the source afterwards
+    COPY,
+    // rename the file if source and target are on the same file system, copy it otherwise
+    MOVE;
+}
@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared data of the files of a mass upload batch. The files reference the folder they are stored in and the process they belong to, both are
+ * created only once per batch instead of once per file.
+ */
+public class UploadBatch {
+
+    private final Map<String, File> folders = new HashMap<>();
+    private final Map<Integer, ProcessInfo> processes = new HashMap<>();
+
+    /**
+     * Create a file of the batch
+     *
+     * @param folder the folder containing the file
+     * @param filename
+     * @return
+     */
+    public MassUploadedFile createFile(File folder, String filename) {
+        return new MassUploadedFile(getFolder(folder), filename);
+    }
+
+    /**
+     * Get the shared instance of the folder
+     *
+     * @param folder
+     * @return
+     */
+    public synchronized File getFolder(File folder) {
+        return folders.computeIfAbsent(folder.getAbsolutePath(), k -> folder.getAbsoluteFile());
+    }
+
+    /**
+     * Get the shared process data, a new instance is only created if the process is unknown or its data changed
+     *
+     * @param processId
+     * @param processTitle
+     * @param processFolder
+     * @param stepId
+     * @return
+     */
+    public synchronized ProcessInfo getProcess(int processId, String processTitle, String processFolder, int stepId) {
+        ProcessInfo info = processes.get(processId);
+        if (info == null || !info.matches(processTitle, processFolder, stepId)) {
+            info = new ProcessInfo(processId, processTitle, processFolder, stepId);
+            processes.put(processId, info);
+        }
+        return info;
+    }
+
+    /**
+     * Forget all folders and processes, files created before keep their data
+     */
+    public synchronized void clear() {
+        folders.clear();
+        processes.clear();
+    }
+}
@@ -0,0 +1,226 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Timers and counters for the phases of a mass upload. Each batch gets its own instance, all measurements are added to the application wide
+ * instance as well, which is available via JMX.
+ *
+ * The durations are stored in buckets with four steps per power of two, so recording needs no lock and no memory, and the percentiles can be
+ * calculated at any time.
+ */
+@Log4j2
+public class UploadMetrics implements UploadMetricsMXBean {
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=MassUpload,name=UploadMetrics";
+
+    public enum Phase {
+        UPLOAD,
+        BARCODE,
+        PROCESS_LOOKUP,
+        DUPLICATE_CHECK,
+        COPY,
+        VALIDATION,
+        CLOSE_STEP
+    }
+
+    private static final UploadMetrics GLOBAL = new UploadMetrics(null);
+
+    static {
+        GLOBAL.register();
+    }
+
+    private final UploadMetrics parent;
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+    private final AtomicLong finishedBatches = new AtomicLong();
+    private volatile long startTime = System.currentTimeMillis();
+
+    /**
+     * Create the metrics of a new batch
+     */
+    public UploadMetrics() {
+        this(GLOBAL);
+    }
+
+    private UploadMetrics(UploadMetrics parent) {
+        this.parent = parent;
+        for (Phase phase : Phase.values()) {
+            timers.put(phase, new Timer());
+        }
+    }
+
+    /**
+     * @return the metrics of all batches since the start of the application
+     */
+    public static UploadMetrics getGlobal() {
+        return GLOBAL;
+    }
+
+    /**
+     * Record a finished action
+     *
+     * @param phase
+     * @param startNanos value of {@link System#nanoTime()} when the action started
+     * @param bytes processed data, 0 if not applicable
+     */
+    public void record(Phase phase, long startNanos, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        timers.get(phase).record(nanos, bytes);
+        if (parent != null) {
+            parent.timers.get(phase).record(nanos, bytes);
+        }
+    }
+
+    public PhaseStatistics getStatistics(Phase phase) {
+        return timers.get(phase).getStatistics(phase.name());
+    }
+
+    @Override
+    public List<PhaseStatistics> getPhases() {
+        List<PhaseStatistics> answer = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            answer.add(getStatistics(phase));
+        }
+        return answer;
+    }
+
+    @Override
+    public long getFinishedBatches() {
+        return finishedBatches.get();
+    }
+
+    @Override
+    public void reset() {
+        for (Timer timer : timers.values()) {
+            timer.reset();
+        }
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Create a summary of all phases that were used in the batch and count the batch as finished
+     *
+     * @return a single line for the log and the process journal
+     */
+    public String finishBatch() {
+        if (parent != null) {
+            parent.finishedBatches.incrementAndGet();
+        }
+        StringBuilder summary = new StringBuilder("Mass upload batch finished after ");
+        summary.append(String.format(Locale.ROOT, "%.1f s", (System.currentTimeMillis() - startTime) / 1000d));
+        for (PhaseStatistics statistics : getPhases()) {
+            if (statistics.getCount() == 0) {
+                continue;
+            }
+            summary.append(String.format(Locale.ROOT, "; %s: %d in %.0f ms, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms", statistics.getPhase(),
+                    statistics.getCount(), statistics.getTotalMillis(), statistics.getP50Millis(), statistics.getP95Millis(),
+                    statistics.getP99Millis()));
+            if (statistics.getBytes() > 0) {
+                summary.append(String.format(Locale.ROOT, ", %.1f MB", statistics.getBytes() / (1024d * 1024d)));
+            }
+        }
+        return summary.toString();
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // the plugin may be loaded again without a restart of the application
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("Mass upload metrics could not be registered in JMX", e);
+        }
+    }
+
+    /**
+     * Durations of a single phase
+     */
+    private static class Timer {
+
+        // four buckets per power of two of the duration in microseconds, the first bucket holds everything below one microsecond
+        private static final int BUCKETS = 1 + 64 * 4;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, long processedBytes) {
+            count.increment();
+            totalNanos.add(nanos);
+            bytes.add(processedBytes);
+            buckets.incrementAndGet(bucket(nanos / 1000));
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            bytes.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        PhaseStatistics getStatistics(String name) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            return new PhaseStatistics(name, count.sum(), totalNanos.sum() / 1_000_000d, percentile(counts, total, 0.5),
+                    percentile(counts, total, 0.95), percentile(counts, total, 0.99), bytes.sum());
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 1) {
+                return 0;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int step = (int) (exponent >= 2 ? micros >>> (exponent - 2) : micros << (2 - exponent)) & 3;
+            return 1 + exponent * 4 + step;
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the percentile in milliseconds
+         */
+        private static double percentile(long[] counts, long total, double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    if (i == 0) {
+                        return 0.001;
+                    }
+                    int exponent = (i - 1) / 4;
+                    int step = (i - 1) % 4;
+                    // buckets cover [ (4 + step) * 2^exponent / 4, (5 + step) * 2^exponent / 4 )
+                    return (5 + step) * Math.pow(2, exponent) / 4 / 1000;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import java.util.List;
+
+/**
+ * Management interface of the mass upload metrics of the application, registered as
+ * {@value UploadMetrics#OBJECT_NAME}
+ */
+public interface UploadMetricsMXBean {
+
+    /**
+     * @return the statistics of all phases since the start of the application or the last reset
+     */
+    List<PhaseStatistics> getPhases();
+
+    /**
+     * @return the number of finished batches
+     */
+    long getFinishedBatches();
+
+    void reset();
+}
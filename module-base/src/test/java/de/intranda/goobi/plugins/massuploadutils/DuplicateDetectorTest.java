@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins.massuploadutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DuplicateDetectorTest {
+
+    private static final byte[] BLANK_PAGE = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File uploadFolder;
+    private Path processFolder;
+    private UploadBatch batch;
+
+    @Before
+    public void setUp() throws IOException {
+        uploadFolder = folder.newFolder("upload");
+        processFolder = folder.newFolder("master").toPath();
+        batch = new UploadBatch();
+    }
+
+    @Test
+    public void testIdenticalPagesWithDifferentNamesAreBothCopied() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256");
+        MassUploadedFile first = createFile("00012.tif", BLANK_PAGE);
+        MassUploadedFile second = createFile("00047.tif", BLANK_PAGE);
+
+        for (MassUploadedFile muf : new MassUploadedFile[] { first, second }) {
+            // copy like the transfer engine does for files that are not skipped
+            if (!detector.handle(muf, null)) {
+                Files.copy(muf.getFile().toPath(), processFolder.resolve(muf.getFilename()));
+                Files.delete(muf.getFile().toPath());
+                muf.setTransfered(true);
+            }
+        }
+
+        assertArrayEquals(BLANK_PAGE, Files.readAllBytes(processFolder.resolve("00012.tif")));
+        assertArrayEquals(BLANK_PAGE, Files.readAllBytes(processFolder.resolve("00047.tif")));
+        assertEquals(MassUploadedFileStatus.OK, second.getStatus());
+    }
+
+    @Test
+    public void testIdenticalTargetIsSkipped() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256");
+        MassUploadedFile muf = createFile("00001.tif", BLANK_PAGE);
+        Path target = Files.write(processFolder.resolve("00001.tif"), BLANK_PAGE);
+        // a different modification date needs the checksum
+        Files.setLastModifiedTime(target, FileTime.fromMillis(0));
+
+        assertTrue(detector.handle(muf, null));
+        assertTrue(muf.isTransfered());
+        assertFalse(muf.getFile().exists());
+    }
+
+    @Test
+    public void testChangedTargetIsCopied() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256");
+        MassUploadedFile muf = createFile("00001.tif", BLANK_PAGE);
+        Path target = Files.write(processFolder.resolve("00001.tif"), new byte[] { 8, 7, 6, 5, 4, 3, 2, 1 });
+        Files.setLastModifiedTime(target, FileTime.fromMillis(0));
+
+        assertFalse(detector.handle(muf, null));
+        assertFalse(muf.isTransfered());
+        assertTrue(muf.getFile().exists());
+    }
+
+    @Test
+    public void testIdenticalTargetIsFlagged() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.FLAG, "SHA-256");
+        MassUploadedFile muf = createFile("00001.tif", BLANK_PAGE);
+        Files.write(processFolder.resolve("00001.tif"), BLANK_PAGE);
+
+        assertTrue(detector.handle(muf, null));
+        assertEquals(MassUploadedFileStatus.ERROR, muf.getStatus());
+        assertEquals(FileMessage.DUPLICATE, muf.getMessage());
+        assertTrue(muf.getFile().exists());
+    }
+
+    @Test
+    public void testSkipNeedsTheChecksumForSameSizeAndDate() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256");
+        MassUploadedFile muf = createFile("00001.tif", BLANK_PAGE);
+        Path target = Files.write(processFolder.resolve("00001.tif"), new byte[] { 8, 7, 6, 5, 4, 3, 2, 1 });
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(muf.getFile().toPath()));
+
+        assertFalse(detector.handle(muf, null));
+        assertFalse(muf.isTransfered());
+        assertTrue(muf.getFile().exists());
+        assertEquals(MassUploadedFileStatus.OK, muf.getStatus());
+    }
+
+    @Test
+    public void testFlagTrustsSameSizeAndDate() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.FLAG, "SHA-256");
+        MassUploadedFile muf = createFile("00001.tif", BLANK_PAGE);
+        Path target = Files.write(processFolder.resolve("00001.tif"), new byte[] { 8, 7, 6, 5, 4, 3, 2, 1 });
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(muf.getFile().toPath()));
+
+        assertTrue(detector.handle(muf, null));
+        assertEquals(MassUploadedFileStatus.ERROR, muf.getStatus());
+        assertEquals(FileMessage.DUPLICATE, muf.getMessage());
+        // the checksum was not needed
+        assertNull(muf.getChecksum());
+    }
+
+    @Test
+    public void testSameImageInBatchIsFlagged() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256", true);
+        DuplicateDetector.FolderFiles folderFiles = detector.newFolderFiles();
+        MassUploadedFile first = createFile("00012.tif", BLANK_PAGE);
+        MassUploadedFile other = createFile("00013.tif", new byte[] { 8, 7, 6, 5, 4, 3, 2, 1 });
+        MassUploadedFile second = createFile("00047.tif", BLANK_PAGE);
+
+        assertFalse(detector.handle(first, folderFiles, null));
+        // the earlier file is compared in the process folder after it was copied
+        Files.copy(first.getFile().toPath(), processFolder.resolve(first.getFilename()));
+        Files.delete(first.getFile().toPath());
+        first.setTransfered(true);
+        assertFalse(detector.handle(other, folderFiles, null));
+        assertTrue(detector.handle(second, folderFiles, null));
+
+        assertEquals(MassUploadedFileStatus.OK, other.getStatus());
+        assertEquals(MassUploadedFileStatus.ERROR, second.getStatus());
+        assertEquals(FileMessage.DUPLICATE, second.getMessage());
+        // in-batch duplicates are never deleted, even when skipping
+        assertTrue(second.getFile().exists());
+        assertFalse(second.isTransfered());
+    }
+
+    @Test
+    public void testInBatchComparisonIsOptional() {
+        assertNull(new DuplicateDetector(DuplicateHandling.SKIP, "SHA-256").newFolderFiles());
+        assertNotNull(new DuplicateDetector(DuplicateHandling.FLAG, "SHA-256", true).newFolderFiles());
+    }
+
+    private MassUploadedFile createFile(String filename, byte[] content) throws IOException {
+        Files.write(new File(uploadFolder, filename).toPath(), content);
+        MassUploadedFile muf = batch.createFile(uploadFolder, filename);
+        muf.setProcess(batch.getProcess(1, "process_1", processFolder.toString(), 2));
+        muf.setStatus(MassUploadedFileStatus.OK);
+        return muf;
+    }
+}
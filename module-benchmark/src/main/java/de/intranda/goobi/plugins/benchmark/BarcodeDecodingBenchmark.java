@@ -0,0 +1,107 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+
+import de.intranda.goobi.plugins.massuploadutils.BarcodeReader;
+
+/**
+ * Barcode detection on generated pages in the size of an A4 scan with 300 dpi. Pages without a barcode are the expensive case, as all passes of
+ * the reader are used for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BarcodeDecodingBenchmark {
+
+    private static final int PAGE_WIDTH = 2480;
+    private static final int PAGE_HEIGHT = 3508;
+
+    @Param({ "tif", "jpg" })
+    private String format;
+
+    @Param({ "true", "false" })
+    private boolean withBarcode;
+
+    @Param({ "1", "4" })
+    private int subsampling;
+
+    private Path folder;
+    private File page;
+    private BarcodeReader reader;
+
+    @Setup
+    public void setup() throws IOException, WriterException {
+        folder = Files.createTempDirectory("massupload-benchmark");
+        page = folder.resolve("page." + format).toFile();
+        if (!ImageIO.write(createPage(), format, page)) {
+            throw new IOException("No image writer available for " + format);
+        }
+        reader = new BarcodeReader(subsampling, null, true, Collections.singletonList(BarcodeFormat.CODE_128), true);
+    }
+
+    private BufferedImage createPage() throws WriterException {
+        BufferedImage image = new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, PAGE_WIDTH, PAGE_HEIGHT);
+            // lines of text are imitated by grey bars
+            Random random = new Random(42);
+            g.setColor(Color.DARK_GRAY);
+            for (int y = 900; y < PAGE_HEIGHT - 300; y += 60) {
+                g.fillRect(250, y, 800 + random.nextInt(1200), 30);
+            }
+            if (withBarcode) {
+                BufferedImage barcode = MatrixToImageWriter.toBufferedImage(
+                        new MultiFormatWriter().encode(SyntheticData.processTitle(4711), BarcodeFormat.CODE_128, 900, 250));
+                g.drawImage(barcode, 250, 300, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(page.toPath());
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public String readBarcode() throws IOException {
+        return reader.readBarcode(page);
+    }
+}
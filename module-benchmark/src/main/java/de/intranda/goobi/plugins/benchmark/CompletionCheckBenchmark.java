@@ -0,0 +1,83 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.massuploadutils.MassUploadedFile;
+import de.intranda.goobi.plugins.massuploadutils.MassUploadedFileStatus;
+import de.intranda.goobi.plugins.massuploadutils.ProcessCompletionTracker;
+import de.intranda.goobi.plugins.massuploadutils.UploadBatch;
+
+/**
+ * Check if a process received all of its files after a file was transferred. The tracker is compared with a scan of the complete file list, as it
+ * was done before the tracker existed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompletionCheckBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int files;
+
+    private List<MassUploadedFile> uploadedFiles;
+    private ProcessCompletionTracker tracker;
+    private int next;
+
+    @Setup
+    public void setup() {
+        UploadBatch batch = new UploadBatch();
+        File folder = new File(System.getProperty("java.io.tmpdir"), "massupload");
+        uploadedFiles = new ArrayList<>(files);
+        tracker = new ProcessCompletionTracker();
+        for (int i = 0; i < files; i++) {
+            int processIndex = SyntheticData.processIndex(i);
+            MassUploadedFile muf = batch.createFile(folder, SyntheticData.filename(i));
+            muf.setStatus(MassUploadedFileStatus.OK);
+            muf.setProcess(batch.getProcess(processIndex + 1, SyntheticData.processTitle(processIndex), folder.getPath(), processIndex + 1));
+            uploadedFiles.add(muf);
+            tracker.register(muf.getProcessId());
+        }
+    }
+
+    private MassUploadedFile nextFile() {
+        next = (next + 1) % files;
+        return uploadedFiles.get(next);
+    }
+
+    @Benchmark
+    public int tracker() {
+        MassUploadedFile muf = nextFile();
+        // keep the counter stable, only the lookup is of interest
+        tracker.register(muf.getProcessId());
+        return tracker.fileFinished(muf.getProcessId()) ? 1 : 0;
+    }
+
+    @Benchmark
+    public int listScan() {
+        MassUploadedFile muf = nextFile();
+        for (MassUploadedFile other : uploadedFiles) {
+            if (other.getProcessId() == muf.getProcessId() && !other.isTransfered() && other != muf) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+}
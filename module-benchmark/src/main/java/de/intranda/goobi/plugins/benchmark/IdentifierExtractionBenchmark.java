@@ -0,0 +1,55 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.massuploadutils.IdentifierExtractor;
+
+/**
+ * Extraction of the process identifier from the names of a whole upload folder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdentifierExtractionBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int files;
+
+    @Param({ "prefix", "suffix" })
+    private String filenamePart;
+
+    private List<String> filenames;
+
+    @Setup
+    public void setup() {
+        filenames = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            filenames.add(SyntheticData.filename(i));
+        }
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) {
+        for (String filename : filenames) {
+            blackhole.consume(IdentifierExtractor.extract(filename, filenamePart, "_"));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.beans.Process;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.massuploadutils.IdentifierExtractor;
+import de.intranda.goobi.plugins.massuploadutils.ProcessResolver;
+
+/**
+ * Assignment of the uploaded files to their processes. The database is replaced by an in-memory query, so the results show the work done in the
+ * plugin: building the filters, the number of queries and matching the found processes to the identifiers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessMatchingBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int files;
+
+    private List<String> identifiers;
+    private ProcessResolver resolver;
+
+    @Setup
+    public void setup() {
+        Map<String, Process> processesByTitle = new HashMap<>();
+        for (int i = 0; i <= SyntheticData.processIndex(files - 1); i++) {
+            Process p = new Process();
+            p.setId(i + 1);
+            p.setTitel(SyntheticData.processTitle(i));
+            processesByTitle.put(p.getTitel().toLowerCase(Locale.ROOT), p);
+        }
+        identifiers = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            identifiers.add(IdentifierExtractor.extract(SyntheticData.filename(i), "prefix", "_"));
+        }
+        resolver = new ProcessResolver("exact", null, (filter, limit) -> findByTitles(filter, processesByTitle));
+    }
+
+    /**
+     * Answers the IN list filters created for exact matching
+     *
+     * @param filter
+     * @param processesByTitle
+     * @return
+     */
+    private static List<Process> findByTitles(String filter, Map<String, Process> processesByTitle) {
+        List<Process> answer = new ArrayList<>();
+        String values = filter.substring(filter.indexOf('(') + 1, filter.lastIndexOf(')'));
+        for (String value : values.split(", ")) {
+            String title = value.substring(1, value.length() - 1).replace("''", "'");
+            Process p = processesByTitle.get(title.toLowerCase(Locale.ROOT));
+            if (p != null) {
+                answer.add(p);
+            }
+        }
+        return answer;
+    }
+
+    @Benchmark
+    public Map<String, List<Process>> resolveBatch() {
+        return resolver.resolve(identifiers);
+    }
+
+    /**
+     * One query per file, like the assignment did before the batch search
+     *
+     * @param blackhole
+     */
+    @Benchmark
+    public void resolvePerFile(Blackhole blackhole) {
+        for (String identifier : identifiers) {
+            blackhole.consume(resolver.resolve(Collections.singletonList(identifier)));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.massuploadutils.MassUploadedFile;
+import de.intranda.goobi.plugins.massuploadutils.UploadBatch;
+
+/**
+ * Sorting of the file list after a scan of the user folder and after the files were assigned
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortingBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int files;
+
+    private List<MassUploadedFile> shuffled;
+    private List<MassUploadedFile> list;
+
+    @Setup
+    public void setup() {
+        UploadBatch batch = new UploadBatch();
+        File folder = new File(System.getProperty("java.io.tmpdir"), "massupload");
+        shuffled = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            shuffled.add(batch.createFile(folder, SyntheticData.filename(i)));
+        }
+        Collections.shuffle(shuffled, new Random(42));
+    }
+
+    // the lists are large enough to make the copy negligible compared with the sort
+    @Setup(Level.Invocation)
+    public void copy() {
+        list = new ArrayList<>(shuffled);
+    }
+
+    @Benchmark
+    public List<MassUploadedFile> naturalOrder() {
+        Collections.sort(list);
+        return list;
+    }
+
+    @Benchmark
+    public List<MassUploadedFile> byFilename() {
+        list.sort(Comparator.comparing(MassUploadedFile::getFilename));
+        return list;
+    }
+}
@@ -0,0 +1,27 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Names of the generated processes and files. The files are distributed over the processes like in a typical upload, with a few hundred pages per
+ * process.
+ */
+final class SyntheticData {
+
+    static final int FILES_PER_PROCESS = 250;
+
+    private SyntheticData() {
+    }
+
+    static int processIndex(int fileIndex) {
+        return fileIndex / FILES_PER_PROCESS;
+    }
+
+    static String processTitle(int processIndex) {
+        return String.format(Locale.ROOT, "ppn_%09d", processIndex);
+    }
+
+    static String filename(int fileIndex) {
+        return String.format(Locale.ROOT, "%s_%08d.tif", processTitle(processIndex(fileIndex)), fileIndex % FILES_PER_PROCESS + 1);
+    }
+}